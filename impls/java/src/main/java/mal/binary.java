@@ -0,0 +1,298 @@
+package mal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mal.types.*;
+
+public class binary {
+    //
+    // A compact tagged binary form of mal values, for state saved by one
+    // run and loaded by the next. A value is a tag byte and its data:
+    // integers are zigzag varints, strings, keywords and symbols are a
+    // varint length and UTF-8 bytes, and collections a varint count and
+    // their elements. Every string, keyword and symbol is numbered as it
+    // is written, and a repeat is written as a REF to its number. Atoms
+    // are always numbered (so an atom holding itself can be written),
+    // and with share set so is every collection, which then keeps its
+    // identity: a collection written twice is thawed as one object.
+    //
+    // Collections are numbered once their elements are written, atoms
+    // before their value, in the same order by freeze and thaw.
+    //
+    static final byte[] MAGIC = { 'M', 'A', 'L', 'F' };
+    static final byte VERSION = 1;
+    static final int FLAG_SHARE = 1;
+
+    static final byte NIL = 0, TRUE = 1, FALSE = 2, INT = 3, STRING = 4,
+        KEYWORD = 5, SYMBOL = 6, LIST = 7, VECTOR = 8, MAP = 9, ATOM = 10,
+        REF = 11, META = 12;
+
+    static final class Writer {
+        byte[] buf = new byte[4096];
+        int len = 0;
+        final boolean share;
+        // Numbers of the strings (keywords included) and symbols written,
+        // and of the atoms and shared collections
+        final Map<String,Integer> strings = new HashMap<String,Integer>();
+        final Map<String,Integer> symbols = new HashMap<String,Integer>();
+        final Map<MalVal,Integer> objects = new IdentityHashMap<MalVal,Integer>();
+        int count = 0;
+
+        Writer(boolean share) {
+            this.share = share;
+        }
+
+        void ensure(int n) {
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            }
+        }
+
+        void put(byte b) {
+            ensure(1);
+            buf[len++] = b;
+        }
+
+        void varint(int v) {
+            ensure(5);
+            while ((v & ~0x7f) != 0) {
+                buf[len++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+
+        // The characters of s from start, as UTF-8 after their length
+        void utf8(String s, int start) {
+            final int n = s.length() - start;
+            boolean ascii = true;
+            for (int i=start; ascii && i<s.length(); i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                varint(n);
+                ensure(n);
+                for (int i=start; i<s.length(); i++) {
+                    buf[len++] = (byte)s.charAt(i);
+                }
+            } else {
+                final byte[] bytes = s.substring(start).getBytes(StandardCharsets.UTF_8);
+                varint(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, len, bytes.length);
+                len += bytes.length;
+            }
+        }
+
+        // A string or keyword (also a hash-map key)
+        void string(String s) {
+            final Integer ref = strings.get(s);
+            if (ref != null) {
+                put(REF);
+                varint(ref);
+            } else if (s.length() > 0 && s.charAt(0) == '\u029e') {
+                strings.put(s, count++);
+                put(KEYWORD);
+                utf8(s, 1);
+            } else {
+                strings.put(s, count++);
+                put(STRING);
+                utf8(s, 0);
+            }
+        }
+
+        void write(MalVal mv) throws MalThrowable {
+            final Integer ref = objects.get(mv);
+            if (ref != null) {
+                put(REF);
+                varint(ref);
+                return;
+            }
+            if ((mv instanceof MalList || mv instanceof MalHashMap ||
+                 mv instanceof MalAtom) && mv.getMeta() != types.Nil) {
+                put(META);
+                write(mv.getMeta());
+            }
+            if (mv == types.Nil) {
+                put(NIL);
+            } else if (mv == types.True) {
+                put(TRUE);
+            } else if (mv == types.False) {
+                put(FALSE);
+            } else if (mv instanceof MalInteger) {
+                final int v = ((MalInteger)mv).getValue();
+                put(INT);
+                varint((v << 1) ^ (v >> 31));
+            } else if (mv instanceof MalString) {
+                string(((MalString)mv).getValue());
+            } else if (mv instanceof MalSymbol) {
+                final String name = ((MalSymbol)mv).getName();
+                final Integer sym = symbols.get(name);
+                if (sym != null) {
+                    put(REF);
+                    varint(sym);
+                } else {
+                    symbols.put(name, count++);
+                    put(SYMBOL);
+                    utf8(name, 0);
+                }
+            } else if (mv instanceof MalList) {
+                final List items = ((MalList)mv).getList();
+                put(mv instanceof MalVector ? VECTOR : LIST);
+                varint(items.size());
+                for (Object o : items) {
+                    write((MalVal)o);
+                }
+                if (share) {
+                    objects.put(mv, count++);
+                }
+            } else if (mv instanceof MalHashMap) {
+                final Map<String,MalVal> entries = (Map<String,MalVal>)((MalHashMap)mv).value;
+                put(MAP);
+                varint(entries.size());
+                for (Map.Entry<String,MalVal> entry : entries.entrySet()) {
+                    string(entry.getKey());
+                    write(entry.getValue());
+                }
+                if (share) {
+                    objects.put(mv, count++);
+                }
+            } else if (mv instanceof MalAtom) {
+                objects.put(mv, count++);
+                put(ATOM);
+                write(((MalAtom)mv).value);
+            } else {
+                throw new MalError("freeze: cannot freeze " +
+                                   printer._pr_str(mv, true));
+            }
+        }
+    }
+
+    public static ByteBuffer freeze(MalVal mv, boolean share)
+            throws MalThrowable {
+        final Writer w = new Writer(share);
+        for (byte b : MAGIC) {
+            w.put(b);
+        }
+        w.put(VERSION);
+        w.put((byte)(share ? FLAG_SHARE : 0));
+        w.write(mv);
+        return ByteBuffer.wrap(w.buf, 0, w.len);
+    }
+
+    static final class Thawer {
+        final ByteBuffer bb;
+        final boolean share;
+        // The values numbered so far, by number
+        final List<MalVal> table = new ArrayList<MalVal>();
+        byte[] scratch = new byte[256];
+
+        Thawer(ByteBuffer bb, boolean share) {
+            this.bb = bb;
+            this.share = share;
+        }
+
+        int varint() {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = bb.get();
+                v |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        String utf8(String prefix) {
+            final int n = varint();
+            if (n > scratch.length) {
+                scratch = new byte[Math.max(n, scratch.length * 2)];
+            }
+            bb.get(scratch, 0, n);
+            final String s = new String(scratch, 0, n, StandardCharsets.UTF_8);
+            return prefix == null ? s : prefix + s;
+        }
+
+        <T extends MalVal> T number(T mv) {
+            table.add(mv);
+            return mv;
+        }
+
+        MalVal read() throws MalThrowable {
+            final byte tag = bb.get();
+            switch (tag) {
+                case NIL:     return types.Nil;
+                case TRUE:    return types.True;
+                case FALSE:   return types.False;
+                case INT: {
+                    final int v = varint();
+                    return new MalInteger((v >>> 1) ^ -(v & 1));
+                }
+                case STRING:  return number(new MalString(utf8(null)));
+                case KEYWORD: return number(new MalString(utf8("\u029e")));
+                case SYMBOL:  return number(new MalSymbol(utf8(null)));
+                case REF:     return table.get(varint());
+                case LIST:
+                case VECTOR: {
+                    final int n = varint();
+                    final List<MalVal> items = new ArrayList<MalVal>(n);
+                    for (int i=0; i<n; i++) {
+                        items.add(read());
+                    }
+                    final MalList ml = tag == VECTOR ? new MalVector(items)
+                                                     : new MalList(items);
+                    return share ? number(ml) : ml;
+                }
+                case MAP: {
+                    final int n = varint();
+                    final Map<String,MalVal> entries = new HashMap<String,MalVal>(n * 4 / 3 + 1);
+                    for (int i=0; i<n; i++) {
+                        final String key = ((MalString)read()).getValue();
+                        entries.put(key, read());
+                    }
+                    final MalHashMap hm = new MalHashMap(entries);
+                    return share ? number(hm) : hm;
+                }
+                case ATOM: {
+                    final MalAtom atom = number(new MalAtom(types.Nil));
+                    atom.value = read();
+                    return atom;
+                }
+                case META: {
+                    final MalVal meta = read();
+                    final MalVal mv = read();
+                    mv.setMeta(meta);
+                    return mv;
+                }
+                default:
+                    throw new MalError("thaw: bad tag " + tag);
+            }
+        }
+    }
+
+    public static MalVal thaw(ByteBuffer bb) throws MalThrowable {
+        try {
+            for (byte b : MAGIC) {
+                if (bb.get() != b) {
+                    throw new MalError("thaw: not frozen data");
+                }
+            }
+            if (bb.get() != VERSION) {
+                throw new MalError("thaw: unsupported version");
+            }
+            final boolean share = (bb.get() & FLAG_SHARE) != 0;
+            return new Thawer(bb, share).read();
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new MalError("thaw: truncated data");
+        } catch (IndexOutOfBoundsException e) {
+            throw new MalError("thaw: bad reference");
+        }
+    }
+}
@@ -6,13 +6,33 @@ import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
 import com.google.common.collect.ImmutableMap;
-
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import java.io.FilterReader;
 import java.io.IOException;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
-import java.io.File;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.RecursiveAction;
 
 import mal.types.*;
+import mal.env.Env;
 import mal.printer;
 import mal.readline;
 
@@ -32,76 +52,76 @@ public class core {
 
 
     // Scalar functions
-    static MalFunction nil_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return args.nth(0) == Nil ? True : False;
+    static MalFunction nil_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a == Nil ? True : False;
         }
     };
 
-    static MalFunction true_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return args.nth(0) == True ? True : False;
+    static MalFunction true_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a == True ? True : False;
         }
     };
 
-    static MalFunction false_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return args.nth(0) == False ? True : False;
+    static MalFunction false_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a == False ? True : False;
         }
     };
-    static MalFunction number_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return args.nth(0) instanceof MalInteger ? True : False;
+    static MalFunction number_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a instanceof MalInteger ? True : False;
         }
     };
-    static MalFunction string_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            if (!(args.nth(0) instanceof MalString)) { return False; }
-            String s = ((MalString)args.nth(0)).getValue();
+    static MalFunction string_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            if (!(a instanceof MalString)) { return False; }
+            String s = ((MalString)a).getValue();
             if (s.length() != 0 && s.charAt(0) == '\u029e') { return False; }
             return True;
         }
     };
 
-    static MalFunction symbol = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return new MalSymbol((MalString)args.nth(0));
+    static MalFunction symbol = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalSymbol((MalString)a);
         }
     };
-    static MalFunction symbol_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return args.nth(0) instanceof MalSymbol ? True : False;
+    static MalFunction symbol_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a instanceof MalSymbol ? True : False;
         }
     };
-    static MalFunction keyword = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            if (args.nth(0) instanceof MalString &&
-                (((MalString)args.nth(0)).getValue().charAt(0) == '\u029e')) {
-                return (MalString)args.nth(0);
+    static MalFunction keyword = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            if (a instanceof MalString &&
+                (((MalString)a).getValue().charAt(0) == '\u029e')) {
+                return (MalString)a;
             } else {
                 return new MalString(
-                        "\u029e" + ((MalString)args.nth(0)).getValue());
+                        "\u029e" + ((MalString)a).getValue());
             }
         }
     };
-    static MalFunction keyword_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            if (!(args.nth(0) instanceof MalString)) { return False; }
-            String s = ((MalString)args.nth(0)).getValue();
+    static MalFunction keyword_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            if (!(a instanceof MalString)) { return False; }
+            String s = ((MalString)a).getValue();
             if (s.length() == 0 || s.charAt(0) != '\u029e') { return False; }
             return True;
         }
     };
-    static MalFunction fn_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            if (!(args.nth(0) instanceof MalFunction)) { return False; }
-            return ((MalFunction)args.nth(0)).isMacro() ? False : True;
+    static MalFunction fn_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            if (!(a instanceof MalFunction)) { return False; }
+            return ((MalFunction)a).isMacro() ? False : True;
         }
     };
-    static MalFunction macro_Q = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            if (!(args.nth(0) instanceof MalFunction)) { return False; }
-            return ((MalFunction)args.nth(0)).isMacro() ? True : False;
+    static MalFunction macro_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            if (!(a instanceof MalFunction)) { return False; }
+            return ((MalFunction)a).isMacro() ? True : False;
         }
     };
 
@@ -121,22 +141,52 @@ public class core {
 
     static MalFunction prn = new MalFunction() {
         public MalVal apply(MalList args) throws MalThrowable {
-            System.out.println(printer._pr_str_args(args, " ", true));
+            printer.println(System.out, args.getList(), " ", true);
             return Nil;
         }
     };
 
     static MalFunction println = new MalFunction() {
         public MalVal apply(MalList args) throws MalThrowable {
-            System.out.println(printer._pr_str_args(args, " ", false));
+            printer.println(System.out, args.getList(), " ", false);
             return Nil;
         }
     };
 
+    // *print-length* or *print-level* in the current namespace, -1 unless
+    // it is a number
+    static int print_limit(String name) {
+        if (env.Namespace.current() == null) {
+            return -1;
+        }
+        final MalVal v = env.Namespace.current().env.get(name);
+        return v instanceof MalInteger ? ((MalInteger)v).getValue() : -1;
+    }
 
-    static MalFunction equal_Q = new MalFunction() {
+    // (pprint value) or (pprint value width), 80 columns by default
+    static MalFunction pprint = new MalFunction() {
         public MalVal apply(MalList args) throws MalThrowable {
-            return types._equal_Q(args.nth(0), args.nth(1)) ? True : False;
+            final int width = args.size() > 1
+                              ? ((MalInteger)args.nth(1)).getValue() : 80;
+            new printer.Pretty(System.out, width,
+                               print_limit("*print-length*"),
+                               print_limit("*print-level*"))
+                .pprint(args.nth(0)).finish();
+            return Nil;
+        }
+    };
+
+    static MalFunction flush = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            System.out.flush();
+            return Nil;
+        }
+    };
+
+
+    static MalFunction equal_Q = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return types._equal_Q(a, b) ? True : False;
         }
     };
 
@@ -153,71 +203,528 @@ public class core {
         }
     };
 
+    //
+    // Standard input as lines, read through readline's shared buffer
+    // with no prompt or history: (*in*) returns a lazy list of the lines
+    // not read yet and read-line returns the next one (nil at the end).
+    // *in* is a function rather than a list so that no global holds the
+    // head of the lines: a list that is walked with first/rest and not
+    // kept keeps only the lines not consumed yet.
+    //
+    static MalVal read_line() throws MalThrowable {
+        try {
+            final String line = readline.stdin().readLine();
+            return line == null ? null : new MalString(line);
+        } catch (IOException e) {
+            throw new MalException(new MalString(e.getMessage()));
+        }
+    }
+
+    static final Producer stdin_producer = new Producer() {
+        public MalVal next() throws MalThrowable {
+            return read_line();
+        }
+    };
+
+    static MalFunction stdin_lines = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return new MalLazyList(stdin_producer);
+        }
+    };
+
+    static MalFunction read_line = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final MalVal line = read_line();
+            return line == null ? Nil : line;
+        }
+    };
+
+    // Whether the argument at i is the keyword :name
+    static boolean option(MalList args, int i, String name) {
+        return args.size() > i && args.nth(i) instanceof MalString &&
+               ((MalString)args.nth(i)).getValue().equals("\u029e" + name);
+    }
+
+    // The shared interner when the argument at i is :intern
+    static reader.Interner interner(MalList args, int i) {
+        return option(args, i, "intern") ? reader.interner() : null;
+    }
+
     static MalFunction read_string = new MalFunction() {
         public MalVal apply(MalList args) throws MalThrowable {
             try {
-                return reader.read_str(((MalString)args.nth(0)).getValue());
+                return reader.read_str(((MalString)args.nth(0)).getValue(),
+                                       interner(args, 1));
             } catch (MalContinue c) {
                 return types.Nil;
             }
         }
     };
 
+    // The forms of a file as a lazy list, read as they are used
+    static MalFunction read_forms = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final reader.Reader rdr = reader.open(((MalString)args.nth(0)).getValue());
+            rdr.interner = interner(args, 1);
+            return new MalLazyList(new Producer() {
+                public MalVal next() throws MalThrowable {
+                    return reader.read_next(rdr);
+                }
+            });
+        }
+    };
+
+    static MalFunction read_all_parallel = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return reader.read_all_parallel(((MalString)args.nth(0)).getValue(),
+                                            interner(args, 1));
+        }
+    };
+
+    static MalFunction intern_stats = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return reader.interner().stats();
+        }
+    };
+
+    //
+    // JSON (see json.java). json-read and json-seq take a trailing
+    // :keywordize for keyword keys; json-seq reads the elements of a
+    // top-level array in a file (or stdin for "-") as a lazy list.
+    //
+    static MalFunction json_read = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return json.read(((MalString)args.nth(0)).getValue(),
+                             option(args, 1, "keywordize"));
+        }
+    };
+
+    static MalFunction json_seq = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final String path = ((MalString)args.nth(0)).getValue();
+            // stdin stays open for *in* and read-line
+            final reader.Reader rdr = !path.equals("-") ? reader.open(path)
+                : new reader.Reader(new FilterReader(readline.stdin()) {
+                    public void close() {}
+                });
+            return new MalLazyList(json.elements(rdr, option(args, 1, "keywordize")));
+        }
+    };
+
+    static MalFunction json_write = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalString(json.write(a));
+        }
+    };
+
+    //
+    // (freeze path value) writes the binary form of a value (see
+    // binary.java) to a file, sharing repeated collections with a
+    // trailing :share; (thaw path) reads it back from a memory mapping.
+    //
+    static MalFunction freeze = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final String fname = ((MalString)args.nth(0)).getValue();
+            final ByteBuffer bb = binary.freeze(args.nth(1), option(args, 2, "share"));
+            try (FileChannel ch = open(fname, StandardOpenOption.WRITE,
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (bb.hasRemaining()) {
+                    ch.write(bb);
+                }
+            } catch (IOException e) {
+                throw new MalError(fname + ": " + e.getMessage());
+            }
+            return Nil;
+        }
+    };
+
+    static MalFunction thaw = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            final String fname = ((MalString)a).getValue();
+            try (FileChannel ch = open(fname, StandardOpenOption.READ)) {
+                return binary.thaw(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            } catch (IOException e) {
+                throw new MalError(fname + ": " + e.getMessage());
+            }
+        }
+    };
+
+    //
+    // Files. slurp decodes a memory-mapped file straight into a string;
+    // spit and spit-append write through the channel's buffered encoder;
+    // line-seq returns the lines of a memory-mapped file as a lazy list,
+    // so only the lines still referenced take heap.
+    //
+    static final long MAP_WINDOW = 1 << 30;
+
+    static FileChannel open(String fname, OpenOption... options)
+            throws MalThrowable {
+        try {
+            return FileChannel.open(Paths.get(fname), options);
+        } catch (NoSuchFileException e) {
+            throw new MalError(fname + " (No such file or directory)");
+        } catch (IOException e) {
+            throw new MalError(fname + ": " + e.getMessage());
+        }
+    }
+
     static MalFunction slurp = new MalFunction() {
         public MalVal apply(MalList args) throws MalThrowable {
             String fname = ((MalString)args.nth(0)).getValue();
+            try (FileChannel ch = open(fname, StandardOpenOption.READ)) {
+                final long size = ch.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new MalError("slurp: " + fname + " is too large");
+                }
+                return new MalString(StandardCharsets.UTF_8.decode(
+                    ch.map(FileChannel.MapMode.READ_ONLY, 0, size)).toString());
+            } catch (IOException e) {
+                throw new MalError(fname + ": " + e.getMessage());
+            }
+        }
+    };
+
+    static MalVal spit(MalList args, OpenOption... options)
+            throws MalThrowable {
+        final String fname = ((MalString)args.nth(0)).getValue();
+        final MalVal content = args.nth(1);
+        try (Writer w = Channels.newWriter(open(fname, options),
+                                           StandardCharsets.UTF_8.newEncoder(),
+                                           1 << 16)) {
+            w.write(content instanceof MalString
+                    ? ((MalString)content).getValue()
+                    : printer._pr_str(content, false));
+        } catch (IOException e) {
+            throw new MalError(fname + ": " + e.getMessage());
+        }
+        return Nil;
+    }
+
+    static MalFunction spit = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return spit(args, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    };
+
+    static MalFunction spit_append = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return spit(args, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+        }
+    };
+
+    // The lines of a file, without their \n or \r\n. The file is mapped
+    // in windows of MAP_WINDOW bytes; a line across windows is joined.
+    static final class MappedLines implements Producer {
+        final MappedByteBuffer[] windows;
+        int w = 0, pos = 0;
+        byte[] buf = new byte[256];
+
+        MappedLines(String fname) throws MalThrowable {
+            try (FileChannel ch = open(fname, StandardOpenOption.READ)) {
+                final long size = ch.size();
+                windows = new MappedByteBuffer[(int)((size + MAP_WINDOW - 1) / MAP_WINDOW)];
+                for (int i=0; i<windows.length; i++) {
+                    windows[i] = ch.map(FileChannel.MapMode.READ_ONLY,
+                        i * MAP_WINDOW, Math.min(MAP_WINDOW, size - i * MAP_WINDOW));
+                }
+            } catch (IOException e) {
+                throw new MalError(fname + ": " + e.getMessage());
+            }
+        }
+
+        // Appends bytes start to end of window to buf, from len
+        int copy(MappedByteBuffer window, int start, int end, int len) {
+            final int n = end - start;
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            }
+            final ByteBuffer view = window.duplicate();
+            view.position(start);
+            view.get(buf, len, n);
+            return len + n;
+        }
+
+        MalString line(int len) {
+            if (len > 0 && buf[len - 1] == '\r') {
+                len--;
+            }
+            return new MalString(new String(buf, 0, len, StandardCharsets.UTF_8));
+        }
+
+        public MalVal next() {
+            int len = 0;
+            while (w < windows.length) {
+                final MappedByteBuffer window = windows[w];
+                final int limit = window.limit();
+                int i = pos;
+                while (i < limit && window.get(i) != '\n') {
+                    i++;
+                }
+                len = copy(window, pos, i, len);
+                if (i < limit) {
+                    pos = i + 1;
+                    if (pos == limit) {
+                        w++;
+                        pos = 0;
+                    }
+                    return line(len);
+                }
+                w++;
+                pos = 0;
+            }
+            // the last line may have no newline
+            return len > 0 ? line(len) : null;
+        }
+    }
+
+    static MalFunction line_seq = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalLazyList(new MappedLines(((MalString)a).getValue()));
+        }
+    };
+
+    // load evaluates the forms of a file (cached by the loader) in the
+    // current namespace; load-file-once does so only the first time
+    // for each file and namespace
+    static Env load_env() throws MalThrowable {
+        if (env.Namespace.current() == null) {
+            throw new MalError("load: no current namespace");
+        }
+        return env.Namespace.current().env;
+    }
+
+    static MalFunction load = new MalTailFunction() {
+        public MalVal applyTail(MalList args) throws MalThrowable {
+            final String path = ((MalString)args.nth(0)).getValue();
+            if (loader.streamed(path)) {
+                return loader.eval_stream(path);
+            }
+            return TailCall.eval(loader.forms(path), load_env());
+        }
+    };
+
+    static MalFunction load_file_once = new MalTailFunction() {
+        public MalVal applyTail(MalList args) throws MalThrowable {
+            final String path = ((MalString)args.nth(0)).getValue();
+            final MalList forms = loader.forms(path);
+            if (!loader.first_load(path)) {
+                return Nil;
+            }
+            return TailCall.eval(forms, load_env());
+        }
+    };
+
+
+    //
+    // Strings, operated on with the String and StringBuilder methods. A
+    // substring is copied (as by String.substring), so a small result
+    // never keeps a large string alive.
+    //
+    static String string(MalVal mv) {
+        return ((MalString)mv).getValue();
+    }
+
+    static int index(MalList args, int i, int deflt) {
+        return args.size() > i ? ((MalInteger)args.nth(i)).getValue() : deflt;
+    }
+
+    // (subs s start) or (subs s start end)
+    static MalFunction subs = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final String s = string(args.nth(0));
             try {
-                // Scanner drops final newline, so add it back
-                return new MalString(
-                    new Scanner(new File(fname)).useDelimiter("\\Z").next()
-                                + "\n");
-            } catch (FileNotFoundException e) {
-                throw new MalError(e.getMessage());
+                return new MalString(s.substring(index(args, 1, 0),
+                                                 index(args, 2, s.length())));
+            } catch (IndexOutOfBoundsException e) {
+                throw new MalError("subs: index out of range");
+            }
+        }
+    };
+
+    // (split s regex) or (split s regex limit), as String.split
+    static MalFunction split = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final String[] parts = pattern(args.nth(1))
+                .split(string(args.nth(0)), index(args, 2, 0));
+            final List<MalVal> items = new ArrayList<MalVal>(parts.length);
+            for (String part : parts) {
+                items.add(new MalString(part));
+            }
+            return new MalVector(items);
+        }
+    };
+
+    // (join coll) or (join separator coll), as str
+    static MalFunction join = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final MalVal coll = args.nth(args.size() - 1);
+            if (coll == Nil) {
+                return new MalString("");
+            }
+            return new MalString(printer.join(((MalList)coll).getList(),
+                args.size() > 1 ? string(args.nth(0)) : "", false));
+        }
+    };
+
+    // (index-of s value) or (index-of s value from), nil if not found
+    static MalFunction index_of = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final int i = string(args.nth(0)).indexOf(string(args.nth(1)),
+                                                      index(args, 2, 0));
+            return i < 0 ? Nil : new MalInteger(i);
+        }
+    };
+
+    static MalFunction starts_with_Q = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return string(a).startsWith(string(b)) ? True : False;
+        }
+    };
+
+    static MalFunction ends_with_Q = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return string(a).endsWith(string(b)) ? True : False;
+        }
+    };
+
+    // Every occurrence of a string (not a regex) replaced
+    static MalFunction replace = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            return new MalString(string(args.nth(0)).replace(
+                string(args.nth(1)), string(args.nth(2))));
+        }
+    };
+
+    static MalFunction trim = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalString(string(a).trim());
+        }
+    };
+
+    static MalFunction upper_case = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalString(string(a).toUpperCase());
+        }
+    };
+
+    static MalFunction lower_case = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalString(string(a).toLowerCase());
+        }
+    };
+
+    //
+    // Regular expressions. A pattern is its source string: re-pattern
+    // checks that it compiles, and every function looks the compiled
+    // Pattern up in a bounded cache, so a literal pattern in a loop is
+    // compiled once. A match is the matched string, or a vector of it
+    // and its groups (nil for a group that did not take part) when the
+    // pattern has groups.
+    //
+    static final LoadingCache<String,Pattern> patterns = CacheBuilder.newBuilder()
+        .maximumSize(1024)
+        .build(new CacheLoader<String,Pattern>() {
+            public Pattern load(String regex) {
+                return Pattern.compile(regex);
             }
+        });
+
+    static Pattern pattern(MalVal mv) throws MalThrowable {
+        try {
+            return patterns.getUnchecked(((MalString)mv).getValue());
+        } catch (UncheckedExecutionException e) {
+            throw new MalError("bad regex: " + e.getCause().getMessage());
+        }
+    }
+
+    static MalVal match(Matcher m) {
+        if (m.groupCount() == 0) {
+            return new MalString(m.group());
+        }
+        final MalVector groups = new MalVector();
+        for (int i=0; i<=m.groupCount(); i++) {
+            final String g = m.group(i);
+            groups.conj_BANG(g == null ? Nil : new MalString(g));
+        }
+        return groups;
+    }
+
+    static MalFunction re_pattern = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            pattern(a);
+            return a;
         }
     };
 
+    static MalFunction re_find = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final Matcher m = pattern(a).matcher(((MalString)b).getValue());
+            return m.find() ? match(m) : Nil;
+        }
+    };
+
+    static MalFunction re_matches = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final Matcher m = pattern(a).matcher(((MalString)b).getValue());
+            return m.matches() ? match(m) : Nil;
+        }
+    };
+
+    // The matches as a lazy list, each found as it is used
+    static MalFunction re_seq = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final Matcher m = pattern(a).matcher(((MalString)b).getValue());
+            return new MalLazyList(new Producer() {
+                public MalVal next() {
+                    return m.find() ? match(m) : null;
+                }
+            });
+        }
+    };
 
     // Number functions
-    static MalFunction add = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).add((MalInteger)a.nth(1));
+    static MalFunction add = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).add((MalInteger)b);
         }
     };
-    static MalFunction subtract = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).subtract((MalInteger)a.nth(1));
+    static MalFunction subtract = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).subtract((MalInteger)b);
         }
     };
-    static MalFunction multiply = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).multiply((MalInteger)a.nth(1));
+    static MalFunction multiply = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).multiply((MalInteger)b);
         }
     };
-    static MalFunction divide = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).divide((MalInteger)a.nth(1));
+    static MalFunction divide = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).divide((MalInteger)b);
         }
     };
 
-    static MalFunction lt = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).lt((MalInteger)a.nth(1));
+    static MalFunction lt = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).lt((MalInteger)b);
         }
     };
-    static MalFunction lte = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).lte((MalInteger)a.nth(1));
+    static MalFunction lte = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).lte((MalInteger)b);
         }
     };
-    static MalFunction gt = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).gt((MalInteger)a.nth(1));
+    static MalFunction gt = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).gt((MalInteger)b);
         }
     };
-    static MalFunction gte = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalInteger)a.nth(0)).gte((MalInteger)a.nth(1));
+    static MalFunction gte = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalInteger)a).gte((MalInteger)b);
         }
     };
 
@@ -236,11 +743,11 @@ public class core {
     };
 
     static public Boolean _list_Q(MalVal mv) {
-        return mv.getClass().equals(MalList.class);
+        return mv instanceof MalList && mv.list_Q();
     }
-    static MalFunction list_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return _list_Q(a.nth(0)) ? True : False;
+    static MalFunction list_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return _list_Q(a) ? True : False;
         }
     };
 
@@ -255,9 +762,9 @@ public class core {
     static public Boolean _vector_Q(MalVal mv) {
         return mv.getClass().equals(MalVector.class);
     }
-    static MalFunction vector_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return _vector_Q(a.nth(0)) ? True : False;
+    static MalFunction vector_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return _vector_Q(a) ? True : False;
         }
     };
 
@@ -267,16 +774,16 @@ public class core {
             return new MalHashMap(a);
         }
     };
-    static MalFunction hash_map_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return a.nth(0) instanceof MalHashMap ? True : False;
+    static MalFunction hash_map_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a instanceof MalHashMap ? True : False;
         }
     };
 
-    static MalFunction contains_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            String key = ((MalString)a.nth(1)).getValue();
-            MalHashMap mhm = (MalHashMap)a.nth(0);
+    static MalFunction contains_Q = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            String key = ((MalString)b).getValue();
+            MalHashMap mhm = (MalHashMap)a;
             HashMap<String,MalVal> hm = (HashMap<String,MalVal>)mhm.value;
             return hm.containsKey(key) ? True : False;
         }
@@ -302,13 +809,180 @@ public class core {
         }
     };
 
-    static MalFunction get = new MalFunction() {
+    //
+    // Batch builders. Each copies the collection it starts from once,
+    // fills the copy in place (conj_BANG, put) and returns it, instead
+    // of a copy per element as a reduce over assoc or conj makes.
+    // update-in and assoc-in copy each map on the path once.
+    //
+    @SuppressWarnings("unchecked")
+    static HashMap<String,MalVal> map_copy(MalVal mv) {
+        if (mv == Nil) {
+            return new HashMap<String,MalVal>();
+        }
+        return (HashMap<String,MalVal>)((HashMap<String,MalVal>)((MalHashMap)mv).value).clone();
+    }
+
+    static MalVal map_get(Map<String,MalVal> hm, MalVal key) {
+        final MalVal v = hm.get(((MalString)key).getValue());
+        return v == null ? Nil : v;
+    }
+
+    // (f value extra...) for update and update-in
+    static MalVal call(MalFunction f, MalVal value, MalList args, int extra)
+            throws MalThrowable {
+        if (args.size() == extra) {
+            return f.apply1(value);
+        }
+        final List<MalVal> fargs = new ArrayList<MalVal>(args.size() - extra + 1);
+        fargs.add(value);
+        fargs.addAll(args.getList().subList(extra, args.size()));
+        return f.apply(new MalList(fargs));
+    }
+
+    // The [key value] entries of a map
+    static List<MalVal> map_entries(MalHashMap mhm) {
+        final Map<String,MalVal> hm = (Map<String,MalVal>)mhm.value;
+        final List<MalVal> entries = new ArrayList<MalVal>(hm.size());
+        for (Map.Entry<String,MalVal> e : hm.entrySet()) {
+            entries.add(new MalVector(new MalString(e.getKey()), e.getValue()));
+        }
+        return entries;
+    }
+
+    // (into to from): items added as conj would (a map takes maps or
+    // [key value] pairs); from a map the items are its [key value] entries
+    static MalFunction into = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final List from;
+            if (b == Nil) {
+                from = new ArrayList();
+            } else if (b instanceof MalList) {
+                from = ((MalList)b).getList();
+            } else if (b instanceof MalHashMap) {
+                from = a instanceof MalHashMap ? Arrays.asList(b)
+                                               : map_entries((MalHashMap)b);
+            } else {
+                throw new MalError("into: cannot add the items of " +
+                                   printer._pr_str(b, true));
+            }
+            if (a instanceof MalHashMap) {
+                final HashMap<String,MalVal> hm = map_copy(a);
+                for (Object o : from) {
+                    if (o instanceof MalHashMap) {
+                        hm.putAll((Map<String,MalVal>)((MalHashMap)o).value);
+                    } else if (o instanceof MalList && ((MalList)o).size() == 2 &&
+                               ((MalList)o).nth(0) instanceof MalString) {
+                        final MalList pair = (MalList)o;
+                        hm.put(((MalString)pair.nth(0)).getValue(), pair.nth(1));
+                    } else {
+                        throw new MalError("into: expected a map or [key value] pair, got " +
+                                           printer._pr_str((MalVal)o, true));
+                    }
+                }
+                return new MalHashMap(hm);
+            } else if (!(a instanceof MalList) && a != Nil) {
+                throw new MalError("into: cannot add to " + printer._pr_str(a, true));
+            } else if (a instanceof MalVector) {
+                final List<MalVal> items = new ArrayList<MalVal>(((MalList)a).size() + from.size());
+                items.addAll(((MalList)a).getList());
+                items.addAll(from);
+                return new MalVector(items);
+            } else {
+                // conj on a list prepends, so the items end up reversed
+                final List<MalVal> items = new ArrayList<MalVal>(from);
+                Collections.reverse(items);
+                if (a != Nil) {
+                    items.addAll(((MalList)a).getList());
+                }
+                return new MalList(items);
+            }
+        }
+    };
+
+    // (merge map...): later keys win; nil maps are skipped
+    static MalFunction merge = new MalFunction() {
+        public MalVal apply(MalList a) throws MalThrowable {
+            HashMap<String,MalVal> hm = null;
+            for (int i=0; i<a.size(); i++) {
+                if (a.nth(i) == Nil) {
+                    continue;
+                } else if (hm == null) {
+                    hm = map_copy(a.nth(i));
+                } else {
+                    hm.putAll((Map<String,MalVal>)((MalHashMap)a.nth(i)).value);
+                }
+            }
+            return hm == null ? Nil : new MalHashMap(hm);
+        }
+    };
+
+    // (update map key f extra...)
+    static MalFunction update = new MalFunction() {
         public MalVal apply(MalList a) throws MalThrowable {
-            if (a.nth(0) == Nil) {
+            final HashMap<String,MalVal> hm = map_copy(a.nth(0));
+            final MalVal key = a.nth(1);
+            hm.put(((MalString)key).getValue(),
+                   call((MalFunction)a.nth(2), map_get(hm, key), a, 3));
+            return new MalHashMap(hm);
+        }
+    };
+
+    // m with the value at the path ks from i replaced by (f value extra...)
+    // or, without f, by value
+    static MalVal update_in(MalVal m, MalList ks, int i, MalFunction f,
+                            MalVal value, MalList args, int extra)
+            throws MalThrowable {
+        final HashMap<String,MalVal> hm = map_copy(m);
+        final MalVal key = ks.nth(i);
+        final MalVal old = map_get(hm, key);
+        final MalVal v;
+        if (i + 1 < ks.size()) {
+            v = update_in(old, ks, i + 1, f, value, args, extra);
+        } else {
+            v = f == null ? value : call(f, old, args, extra);
+        }
+        hm.put(((MalString)key).getValue(), v);
+        return new MalHashMap(hm);
+    }
+
+    // (update-in map [key...] f extra...)
+    static MalFunction update_in = new MalFunction() {
+        public MalVal apply(MalList a) throws MalThrowable {
+            return update_in(a.nth(0), (MalList)a.nth(1), 0,
+                             (MalFunction)a.nth(2), null, a, 3);
+        }
+    };
+
+    // (assoc-in map [key...] value)
+    static MalFunction assoc_in = new MalFunction() {
+        public MalVal apply(MalList a) throws MalThrowable {
+            return update_in(a.nth(0), (MalList)a.nth(1), 0, null,
+                             a.nth(2), a, 3);
+        }
+    };
+
+    static MalFunction zipmap = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final HashMap<String,MalVal> hm = new HashMap<String,MalVal>();
+            if (a != Nil && b != Nil) {
+                final Iterator ks = ((MalList)a).getList().iterator();
+                final Iterator vs = ((MalList)b).getList().iterator();
+                while (ks.hasNext() && vs.hasNext()) {
+                    hm.put(((MalString)ks.next()).getValue(), (MalVal)vs.next());
+                }
+            }
+            return new MalHashMap(hm);
+        }
+    };
+
+    static MalFunction get = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            if (a == Nil) {
                 return Nil;
             } else {
-                String key = ((MalString)a.nth(1)).getValue();
-                MalHashMap mhm = (MalHashMap)a.nth(0);
+                String key = ((MalString)b).getValue();
+                MalHashMap mhm = (MalHashMap)a;
                 HashMap<String,MalVal> hm = (HashMap<String,MalVal>)mhm.value;
                 if (hm.containsKey(key)) {
                     return hm.get(key);
@@ -346,27 +1020,29 @@ public class core {
 
 
     // Sequence functions
-    static MalFunction sequential_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return a.nth(0) instanceof MalList ? True : False;
+    static MalFunction sequential_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a instanceof MalList ? True : False;
         }
     };
 
-    static MalFunction count = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            if (a.nth(0) == Nil) {
+    static MalFunction count = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            if (a == Nil) {
                 return new MalInteger(0);
+            } else if (a instanceof MalString) {
+                return new MalInteger(((MalString)a).getValue().length());
             } else {
-                return new MalInteger(((MalList)a.nth(0)).size());
+                return new MalInteger(((MalList)a).size());
             }
         }
     };
 
-    static MalFunction empty_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            MalVal exp = a.nth(0);
+    static MalFunction empty_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            MalVal exp = a;
             if (exp == Nil || (exp instanceof MalList &&
-                               ((MalList)exp).size() == 0)) {
+                               ((MalList)exp).getList().isEmpty())) {
                 return True;
             } else {
                 return False;
@@ -374,11 +1050,11 @@ public class core {
         }
     };
 
-    static MalFunction cons = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
+    static MalFunction cons = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
             List<MalVal> lst = new ArrayList<MalVal>();
-            lst.add(a.nth(0));
-            lst.addAll(((MalList)a.nth(1)).getList());
+            lst.add(a);
+            lst.addAll(((MalList)b).getList());
             return (MalVal)new MalList(lst);
         }
     };
@@ -395,26 +1071,26 @@ public class core {
         }
     };
 
-    static MalFunction vec = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return new MalVector(((MalList)a.nth(0)).getList());
+    static MalFunction vec = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalVector(((MalList)a).getList());
         }
     };
 
-    static MalFunction first = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            MalVal exp = a.nth(0);
+    static MalFunction first = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            MalVal exp = a;
             if (exp == Nil) {
                 return Nil;
             }
             MalList ml = ((MalList)exp);
-            return ml.size() > 0 ? ml.nth(0) : Nil;
+            return ml.getList().isEmpty() ? Nil : ml.nth(0);
         }
     };
 
-    static MalFunction rest = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            MalVal exp = a.nth(0);
+    static MalFunction rest = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            MalVal exp = a;
             if (exp == Nil) {
                 return new MalList();
             }
@@ -423,37 +1099,309 @@ public class core {
         }
     };
 
-    static MalFunction nth = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            Integer idx = ((MalInteger)a.nth(1)).getValue();
-            if (idx < ((MalList)a.nth(0)).size()) {
-                return ((MalList)a.nth(0)).nth(idx);
-            } else {
+    static MalFunction nth = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            Integer idx = ((MalInteger)b).getValue();
+            try {
+                return ((MalList)a).nth(idx);
+            } catch (IndexOutOfBoundsException e) {
                 throw new MalError("nth: index out of range");
             }
         }
     };
 
     // General sequence functions
-    static MalFunction apply = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
+    //
+    // Sorting and grouping. Sorts are stable. A comparator is a function
+    // returning a number, or a predicate such as < (true when a comes
+    // before b). An array of SORT_PIECE elements or more is sorted on the
+    // fork-join pool, a merge sort of sorted pieces, when the ordering
+    // is compare or a builtin; a function defined in mal is called on the
+    // evaluator's thread only, so it is sorted sequentially. sort-by
+    // computes each key once, in order, and sorts the keys in parallel.
+    //
+    static final int SORT_PIECE = 1 << 13;
+
+    // A MalThrowable thrown through a Comparator
+    static final class SortError extends RuntimeException {
+        final MalThrowable error;
+        SortError(MalThrowable error) {
+            super(error.getMessage());
+            this.error = error;
+        }
+    }
+
+    static int type_order(MalVal mv) throws MalThrowable {
+        if (mv == Nil) { return 0; }
+        if (mv == False || mv == True) { return 1; }
+        if (mv instanceof MalInteger) { return 2; }
+        if (mv instanceof MalString) {
+            final String s = ((MalString)mv).getValue();
+            return s.length() > 0 && s.charAt(0) == '\u029e' ? 4 : 3;
+        }
+        if (mv instanceof MalSymbol) { return 5; }
+        if (mv instanceof MalList) { return 6; }
+        throw new MalError("compare: cannot compare " + printer._pr_str(mv, true));
+    }
+
+    // nil first; values of different types (other than nil) cannot be
+    // compared; sequences compare by length, then element by element
+    static int compare(MalVal a, MalVal b) throws MalThrowable {
+        final int ta = type_order(a), tb = type_order(b);
+        if (ta != tb) {
+            if (ta == 0 || tb == 0) {
+                return ta - tb;
+            }
+            throw new MalError("compare: cannot compare " +
+                               printer._pr_str(a, true) + " and " +
+                               printer._pr_str(b, true));
+        }
+        switch (ta) {
+            case 0: return 0;
+            case 1: return (a == True ? 1 : 0) - (b == True ? 1 : 0);
+            case 2: return ((MalInteger)a).getValue().compareTo(((MalInteger)b).getValue());
+            case 3:
+            case 4: return ((MalString)a).getValue().compareTo(((MalString)b).getValue());
+            case 5: return ((MalSymbol)a).getName().compareTo(((MalSymbol)b).getName());
+            default: {
+                final List la = ((MalList)a).getList(), lb = ((MalList)b).getList();
+                if (la.size() != lb.size()) {
+                    return la.size() < lb.size() ? -1 : 1;
+                }
+                final Iterator ia = la.iterator(), ib = lb.iterator();
+                while (ia.hasNext()) {
+                    final int c = compare((MalVal)ia.next(), (MalVal)ib.next());
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        }
+    }
+
+    static final Comparator<MalVal> natural = new Comparator<MalVal>() {
+        public int compare(MalVal a, MalVal b) {
+            try {
+                return core.compare(a, b);
+            } catch (MalThrowable t) {
+                throw new SortError(t);
+            }
+        }
+    };
+
+    static Comparator<MalVal> comparator(final MalFunction f) {
+        if (f == compare_fn) {
+            return natural;
+        }
+        return new Comparator<MalVal>() {
+            public int compare(MalVal a, MalVal b) {
+                try {
+                    final MalVal r = f.apply2(a, b);
+                    if (r instanceof MalInteger) {
+                        return ((MalInteger)r).getValue();
+                    } else if (r != Nil && r != False) {
+                        return -1;
+                    }
+                    final MalVal s = f.apply2(b, a);
+                    return s != Nil && s != False ? 1 : 0;
+                } catch (MalThrowable t) {
+                    throw new SortError(t);
+                }
+            }
+        };
+    }
+
+    static final class SortTask<T> extends RecursiveAction {
+        final T[] a, tmp;
+        final int lo, hi;
+        final Comparator<? super T> cmp;
+
+        SortTask(T[] a, T[] tmp, int lo, int hi, Comparator<? super T> cmp) {
+            this.a = a;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+            this.cmp = cmp;
+        }
+
+        protected void compute() {
+            if (hi - lo <= SORT_PIECE) {
+                Arrays.sort(a, lo, hi, cmp);
+                return;
+            }
+            final int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask<T>(a, tmp, lo, mid, cmp),
+                      new SortTask<T>(a, tmp, mid, hi, cmp));
+            if (cmp.compare(a[mid - 1], a[mid]) <= 0) {
+                return;
+            }
+            // Merge the left half (moved to tmp) with the right, in place
+            System.arraycopy(a, lo, tmp, lo, mid - lo);
+            int i = lo, j = mid, k = lo;
+            while (i < mid && j < hi) {
+                a[k++] = cmp.compare(a[j], tmp[i]) < 0 ? a[j++] : tmp[i++];
+            }
+            while (i < mid) {
+                a[k++] = tmp[i++];
+            }
+        }
+    }
+
+    static <T> void sort(T[] a, Comparator<? super T> cmp, boolean parallel)
+            throws MalThrowable {
+        try {
+            if (parallel && a.length >= 2 * SORT_PIECE) {
+                reader.pool().invoke(new SortTask<T>(a, a.clone(), 0, a.length, cmp));
+            } else {
+                Arrays.sort(a, cmp);
+            }
+        } catch (RuntimeException e) {
+            // the pool may rethrow a copy, with the original as its cause
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof SortError) {
+                    throw ((SortError)t).error;
+                }
+            }
+            if (e instanceof IllegalArgumentException) {
+                throw new MalError("sort: inconsistent comparator");
+            }
+            throw e;
+        }
+    }
+
+    static MalVal[] elements(MalVal coll) {
+        if (coll == Nil) {
+            return new MalVal[0];
+        }
+        final List items = ((MalList)coll).getList();
+        return (MalVal[])items.toArray(new MalVal[items.size()]);
+    }
+
+    static MalFunction compare_fn = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return new MalInteger(Integer.signum(compare(a, b)));
+        }
+    };
+
+    // (sort coll) or (sort comparator coll)
+    static MalFunction sort = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final MalVal[] items = elements(args.nth(args.size() - 1));
+            if (args.size() > 1) {
+                final MalFunction f = (MalFunction)args.nth(0);
+                sort(items, comparator(f), f.ast == null);
+            } else {
+                sort(items, natural, true);
+            }
+            return new MalList(new ArrayList<MalVal>(Arrays.asList(items)));
+        }
+    };
+
+    static final class Keyed {
+        final MalVal key, value;
+        Keyed(MalVal key, MalVal value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // (sort-by keyfn coll) or (sort-by keyfn comparator coll)
+    static MalFunction sort_by = new MalFunction() {
+        public MalVal apply(MalList args) throws MalThrowable {
+            final MalFunction keyfn = (MalFunction)args.nth(0);
+            final MalVal[] items = elements(args.nth(args.size() - 1));
+            final Keyed[] keyed = new Keyed[items.length];
+            for (int i=0; i<items.length; i++) {
+                keyed[i] = new Keyed(keyfn.apply1(items[i]), items[i]);
+            }
+            final MalFunction f = args.size() > 2 ? (MalFunction)args.nth(1) : null;
+            final Comparator<MalVal> cmp = f == null ? natural : comparator(f);
+            sort(keyed, new Comparator<Keyed>() {
+                public int compare(Keyed a, Keyed b) {
+                    return cmp.compare(a.key, b.key);
+                }
+            }, f == null || f.ast == null);
+            final List<MalVal> sorted = new ArrayList<MalVal>(keyed.length);
+            for (Keyed k : keyed) {
+                sorted.add(k.value);
+            }
+            return new MalList(sorted);
+        }
+    };
+
+    // A map from each (string or keyword) key to a vector of the items
+    // with that key, in one pass
+    static MalFunction group_by = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final MalFunction f = (MalFunction)a;
+            final Map<String,MalVal> groups = new HashMap<String,MalVal>();
+            for (MalVal item : elements(b)) {
+                final MalVal key = f.apply1(item);
+                if (!(key instanceof MalString)) {
+                    throw new MalError("group-by: key must be a string or keyword, got " +
+                                       printer._pr_str(key, true));
+                }
+                final String k = ((MalString)key).getValue();
+                MalVector group = (MalVector)groups.get(k);
+                if (group == null) {
+                    group = new MalVector();
+                    groups.put(k, group);
+                }
+                group.conj_BANG(item);
+            }
+            return new MalHashMap(groups);
+        }
+    };
+
+    // A lazy list of lists of consecutive items with equal (f item)
+    static MalFunction partition_by = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            final MalFunction f = (MalFunction)a;
+            final Iterator it = b == Nil ? new ArrayList().iterator()
+                                         : ((MalList)b).getList().iterator();
+            return new MalLazyList(new Producer() {
+                MalVal pending = null, pending_key = null;
+
+                public MalVal next() throws MalThrowable {
+                    if (pending == null) {
+                        if (!it.hasNext()) {
+                            return null;
+                        }
+                        pending = (MalVal)it.next();
+                        pending_key = f.apply1(pending);
+                    }
+                    final MalList group = new MalList(pending);
+                    final MalVal key = pending_key;
+                    pending = null;
+                    while (it.hasNext()) {
+                        final MalVal item = (MalVal)it.next();
+                        final MalVal k = f.apply1(item);
+                        if (!types._equal_Q(k, key)) {
+                            pending = item;
+                            pending_key = k;
+                            break;
+                        }
+                        group.conj_BANG(item);
+                    }
+                    return group;
+                }
+            });
+        }
+    };
+
+    static MalFunction apply = new MalTailFunction() {
+        public MalVal applyTail(MalList a) throws MalThrowable {
             MalFunction f = (MalFunction)a.nth(0);
             MalList args = a.slice(1,a.size()-1);
             args.value.addAll( ((MalList)a.nth(a.size()-1)).value);
-            return f.apply(args);
+            return TailCall.call(f, args);
         }
     };
 
-    static MalFunction map = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            MalFunction f = (MalFunction) a.nth(0);
-            MalList src_lst = (MalList) a.nth(1);
-            MalList new_lst = new MalList();
-            for(Integer i=0; i<src_lst.size(); i++) {
-                new_lst.value.add(
-                        f.apply(new MalList(src_lst.nth(i))));
-            }
-            return new_lst;
+    static MalFunction map = new MalTailFunction() {
+        public MalVal applyTail(MalList a) throws MalThrowable {
+            return TailCall.map((MalFunction)a.nth(0), (MalList)a.nth(1));
         }
     };
 
@@ -484,14 +1432,16 @@ public class core {
                 if (((MalVector)mv).size() == 0) { return Nil; }
                 return new MalList(((MalVector)mv).getList());
             } else if (mv instanceof MalList) {
-                if (((MalList)mv).size() == 0) { return Nil; }
+                if (((MalList)mv).getList().isEmpty()) { return Nil; }
                 return mv;
             } else if (mv instanceof MalString) {
                 String s = ((MalString)mv).getValue();
                 if (s.length() == 0) { return Nil; }
-                List<MalVal> lst = new ArrayList<MalVal>();
-                for (String c : s.split("(?!^)")) {
-                    lst.add(new MalString(c));
+                List<MalVal> lst = new ArrayList<MalVal>(s.length());
+                for (int i=0; i<s.length(); ) {
+                    final int n = Character.charCount(s.codePointAt(i));
+                    lst.add(new MalString(s.substring(i, i + n)));
+                    i += n;
                 }
                 return new MalList(lst);
             } else if (mv == Nil) {
@@ -505,55 +1455,54 @@ public class core {
 
     // Metadata functions
 
-    static MalFunction meta = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            return args.nth(0).getMeta();
+    static MalFunction meta = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a.getMeta();
         }
     };
 
-    static MalFunction with_meta = new MalFunction() {
-        public MalVal apply(MalList args) throws MalThrowable {
-            MalVal new_mv = ((MalVal)args.nth(0)).copy();
-            new_mv.setMeta(args.nth(1));
+    static MalFunction with_meta = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            MalVal new_mv = a.copy();
+            new_mv.setMeta(b);
             return new_mv;
         }
     };
 
 
     // Atom functions
-    static MalFunction new_atom = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return new MalAtom(a.nth(0));
+    static MalFunction new_atom = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return new MalAtom(a);
         }
     };
 
-    static MalFunction atom_Q = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return a.nth(0) instanceof MalAtom ? True : False;
+    static MalFunction atom_Q = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return a instanceof MalAtom ? True : False;
         }
     };
 
-    static MalFunction deref = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalAtom)a.nth(0)).value;
+    static MalFunction deref = new MalFunction1() {
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return ((MalAtom)a).value;
         }
     };
 
-    static MalFunction reset_BANG = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
-            return ((MalAtom)a.nth(0)).value = a.nth(1);
+    static MalFunction reset_BANG = new MalFunction2() {
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return ((MalAtom)a).value = b;
         }
     };
 
-    static MalFunction swap_BANG = new MalFunction() {
-        public MalVal apply(MalList a) throws MalThrowable {
+    static MalFunction swap_BANG = new MalTailFunction() {
+        public MalVal applyTail(MalList a) throws MalThrowable {
             MalAtom atm = (MalAtom)a.nth(0);
             MalFunction f = (MalFunction)a.nth(1);
             MalList new_args = new MalList();
             new_args.value.addAll(((MalList)a.slice(2)).value);
             new_args.value.add(0, atm.value);
-            atm.value = f.apply(new_args);
-            return atm.value;
+            return TailCall.swap(atm, f, new_args);
         }
     };
 
@@ -579,11 +1528,41 @@ public class core {
 
         .put("pr-str",    pr_str)
         .put("str",       str)
+        .put("re-pattern", re_pattern)
+        .put("re-find",   re_find)
+        .put("re-matches", re_matches)
+        .put("re-seq",    re_seq)
+        .put("subs",      subs)
+        .put("split",     split)
+        .put("join",      join)
+        .put("index-of",  index_of)
+        .put("starts-with?", starts_with_Q)
+        .put("ends-with?", ends_with_Q)
+        .put("replace",   replace)
+        .put("trim",      trim)
+        .put("upper-case", upper_case)
+        .put("lower-case", lower_case)
         .put("prn",       prn)
         .put("println",   println)
+        .put("flush",     flush)
+        .put("pprint",    pprint)
         .put("readline",  mal_readline)
+        .put("read-line", read_line)
         .put("read-string", read_string)
+        .put("read-forms", read_forms)
+        .put("read-all-parallel", read_all_parallel)
+        .put("intern-stats", intern_stats)
+        .put("json-read", json_read)
+        .put("json-seq",  json_seq)
+        .put("json-write", json_write)
+        .put("freeze",    freeze)
+        .put("thaw",      thaw)
         .put("slurp",     slurp)
+        .put("spit",      spit)
+        .put("spit-append", spit_append)
+        .put("line-seq",  line_seq)
+        .put("load",      load)
+        .put("load-file-once", load_file_once)
         .put("<",         lt)
         .put("<=",        lte)
         .put(">",         gt)
@@ -602,6 +1581,12 @@ public class core {
         .put("map?",      hash_map_Q)
         .put("assoc",     assoc)
         .put("dissoc",    dissoc)
+        .put("into",      into)
+        .put("merge",     merge)
+        .put("update",    update)
+        .put("update-in", update_in)
+        .put("assoc-in",  assoc_in)
+        .put("zipmap",    zipmap)
         .put("contains?", contains_Q)
         .put("get",       get)
         .put("keys",      keys)
@@ -618,6 +1603,11 @@ public class core {
         .put("count",     count)
         .put("apply",     apply)
         .put("map",       map)
+        .put("compare",   compare_fn)
+        .put("sort",      sort)
+        .put("sort-by",   sort_by)
+        .put("group-by",  group_by)
+        .put("partition-by", partition_by)
 
         .put("conj",      conj)
         .put("seq",       seq)
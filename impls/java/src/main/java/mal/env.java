@@ -1,6 +1,10 @@
 package mal;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import mal.types.MalThrowable;
 import mal.types.MalException;
@@ -9,40 +13,469 @@ import mal.types.MalSymbol;
 import mal.types.MalList;
 
 public class env {
+    // The names bound by a binding form (fn* parameters, let* or loop*
+    // bindings, a catch* symbol), one slot each. A scope is computed
+    // once per form and shared by every frame the form creates.
+    public static class Scope {
+        final String[] names;
+        // Set when the form the scope binds for may def! a name into its
+        // frame later (its body has def!, defmacro! or eval), which a
+        // closure created there must still see
+        public Boolean defs = false;
+
+        public Scope(List<String> names) {
+            this.names = names.toArray(new String[names.size()]);
+            for (String name : this.names) {
+                bindLocal(name);
+            }
+        }
+
+        public int size() { return names.length; }
+        public String name(int i) { return names[i]; }
+
+        // Slot of name, or -1. A name bound twice uses its last slot.
+        public int indexOf(String name) {
+            for (int i=names.length-1; i>=0; i--) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Scope of a parameter list (the symbol after '&' takes the
+        // slot of the rest args), cached on the list
+        public static Scope params(MalList params) {
+            if (params.analysis instanceof Scope) {
+                return (Scope)params.analysis;
+            }
+            List<String> names = new ArrayList<String>();
+            for (int i=0; i<params.size(); i++) {
+                String sym = ((MalSymbol)params.nth(i)).getName();
+                if (!sym.equals("&")) {
+                    names.add(sym);
+                }
+            }
+            Scope scope = new Scope(names);
+            params.analysis = scope;
+            return scope;
+        }
+
+        // Scope of a let*/loop* binding vector
+        public static Scope bindings(MalList bindings) {
+            List<String> names = new ArrayList<String>();
+            for (int i=0; i<bindings.size(); i+=2) {
+                names.add(((MalSymbol)bindings.nth(i)).getName());
+            }
+            return new Scope(names);
+        }
+    }
+
+    // Every name that has been bound other than in a namespace, i.e.
+    // by a scope or by def! inside a function. localsVersion changes
+    // whenever a new one is added, so callers can cache isLocal.
+    static final Set<String> localNames = new HashSet<String>();
+    static volatile int localsVersion = 0;
+
+    static synchronized void bindLocal(String name) {
+        if (localNames.add(name)) {
+            localsVersion++;
+        }
+    }
+    public static synchronized Boolean isLocal(String name) {
+        return localNames.contains(name);
+    }
+    public static int localsVersion() { return localsVersion; }
+
+    // The cell holding a definition outside of a scope (normally in a
+    // namespace). It is created by the first def! of the name, or by the
+    // first reference to it, and def! updates it in place, so a
+    // reference that cached the cell sees redefinitions.
+    public static final class Var {
+        public final String name;
+        // null until defined
+        public MalVal value;
+        // For a namespace's cell: the same name in the namespace it
+        // refers to (core), used until this one is defined
+        final Var refer;
+
+        Var(String name, Var refer) {
+            this.name = name;
+            this.refer = refer;
+        }
+
+        public MalVal get() {
+            final MalVal v = value;
+            if (v == null && refer != null) {
+                return refer.value;
+            }
+            return v;
+        }
+    }
+
+    // A namespace: a root Env with its own table of definitions, the
+    // aliases require gave to other namespaces, and the namespace whose
+    // definitions it uses unqualified (core, for all but core itself)
+    public static class Namespace {
+        static final HashMap<String,Namespace> namespaces =
+            new HashMap<String,Namespace>();
+        static Namespace current = null;
+
+        public final String name;
+        public final Env env;
+        final Namespace refer;
+        final HashMap<String,Namespace> aliases =
+            new HashMap<String,Namespace>();
+
+        Namespace(String name, Namespace refer) {
+            this.name = name;
+            this.refer = refer;
+            this.env = new Env(null);
+            this.env.ns = this;
+        }
+
+        public static synchronized Namespace find(String name) {
+            return namespaces.get(name);
+        }
+
+        // The namespace called name, created referring to refer if
+        // there isn't one yet
+        public static synchronized Namespace create(String name,
+                                                    Namespace refer) {
+            Namespace ns = namespaces.get(name);
+            if (ns == null) {
+                ns = new Namespace(name, refer);
+                namespaces.put(name, ns);
+            }
+            return ns;
+        }
+
+        public static Namespace current() { return current; }
+        public static void setCurrent(Namespace ns) { current = ns; }
+
+        public Namespace getRefer() { return refer; }
+
+        public synchronized void alias(String alias, Namespace ns) {
+            aliases.put(alias, ns);
+        }
+
+        // The namespace a qualified symbol's prefix names here
+        synchronized Namespace qualifier(String prefix) {
+            Namespace ns = aliases.get(prefix);
+            return ns != null ? ns : find(prefix);
+        }
+    }
+
+    // Where a symbol was found, relative to the frame it was evaluated
+    // in: scopes[d] is the scope of the d-th frame out (null for a frame
+    // without one) and the value is in slot index of the last of them,
+    // or in its map if index is -1. For a namespace the cell itself is
+    // kept in var. Cached on the symbol by Env.lookup.
+    public static final class EnvSlot {
+        final Scope[] scopes;
+        final int index;
+        final Env root;
+        final Var var;
+
+        EnvSlot(Scope[] scopes, int index, Env root, Var var) {
+            this.scopes = scopes;
+            this.index = index;
+            this.root = root;
+            this.var = var;
+        }
+    }
+
+    // A closure frame slot that copied a binding which wasn't final yet
+    // (see Env.capture): writes to slot are copied to dst.slots[dstSlot]
+    static final class Watch {
+        final int slot;
+        final Env dst;
+        final int dstSlot;
+
+        Watch(int slot, Env dst, int dstSlot) {
+            this.slot = slot;
+            this.dst = dst;
+            this.dstSlot = dstSlot;
+        }
+    }
+
     public static class Env {
         Env outer = null;
-        HashMap<String,MalVal> data = new HashMap<String,MalVal>();
+        // The outermost frame, normally a namespace's table
+        final Env root;
+        // Set on a namespace's own root frame
+        Namespace ns = null;
+        // Bindings of the form that created this frame, by slot
+        final Scope scope;
+        final MalVal[] slots;
+        // Anything else: a namespace's definitions and names def!'d in
+        // a frame whose scope doesn't have them
+        HashMap<String,Var> data = null;
+        List<Watch> watches = null;
 
         public Env(Env outer) {
+            this(outer, (Scope)null);
+        }
+        public Env(Env outer, Scope scope) {
             this.outer = outer;
+            this.root = outer == null ? this : outer.root;
+            this.scope = scope;
+            this.slots = scope == null ? null : new MalVal[scope.size()];
         }
         public Env(Env outer, MalList binds, MalList exprs) {
-            this.outer = outer;
-            for (Integer i=0; i<binds.size(); i++) {
+            this(outer, Scope.params(binds));
+            for (int i=0; i<binds.size(); i++) {
                 String sym = ((MalSymbol)binds.nth(i)).getName();
                 if (sym.equals("&")) {
-                    data.put(((MalSymbol)binds.nth(i+1)).getName(),
-                            exprs.slice(i));
+                    slots[i] = exprs.slice(i);
                     break;
                 } else {
-                    data.put(sym, exprs.nth(i));
+                    slots[i] = exprs.nth(i);
+                }
+            }
+        }
+
+        // Store v in slot i, for binders that know the parameter layout
+        public Env bind(int i, MalVal v) {
+            slots[i] = v;
+            if (watches != null) {
+                notify(i, v);
+            }
+            return this;
+        }
+
+        void notify(int i, MalVal v) {
+            for (Watch w : watches) {
+                if (w.slot == i) {
+                    w.dst.slots[w.dstSlot] = v;
+                }
+            }
+        }
+
+        // A frame with an unbound slot is still being bound by its
+        // let*/loop* (or has a name bound twice) and may change
+        Boolean binding() {
+            for (MalVal v : slots) {
+                if (v == null) {
+                    return true;
                 }
             }
+            return false;
         }
-        
+
+        // A frame for a closure created in this env that references
+        // (at most) names: it holds their current local bindings on top
+        // of the namespace, so the closure doesn't keep the rest of this
+        // env alive. Bindings that may still change (let* forward and
+        // self references, names bound twice) are kept up to date. If
+        // none of names is bound locally the namespace itself is used.
+        // A frame that may still gain a def! of one of names can't be
+        // copied from, so then the closure keeps all of this env.
+        public Env capture(Scope names) {
+            if (this == root) {
+                return root;
+            }
+            for (Env e = this; e != root; e = e.outer) {
+                if (e.scope == null || e.scope.defs) {
+                    return this;
+                }
+            }
+            Env c = new Env(root, names);
+            Boolean used = false;
+            for (int j=0; j<names.size(); j++) {
+                final String name = names.names[j];
+                for (Env e = this; e != root; e = e.outer) {
+                    int i = e.scope == null ? -1 : e.scope.indexOf(name);
+                    if (i >= 0) {
+                        used = true;
+                        c.slots[j] = e.slots[i];
+                        if (e.slots[i] == null || e.binding()) {
+                            if (e.watches == null) {
+                                e.watches = new ArrayList<Watch>();
+                            }
+                            e.watches.add(new Watch(i, c, j));
+                        }
+                        if (e.slots[i] != null) {
+                            break;
+                        }
+                    }
+                    Var var = e.data == null ? null : e.data.get(name);
+                    if (var != null && var.value != null) {
+                        // def!'d in a local frame: share the cell
+                        used = true;
+                        if (c.data == null) {
+                            c.data = new HashMap<String,Var>();
+                        }
+                        c.data.put(name, var);
+                        break;
+                    }
+                }
+            }
+            return used ? c : root;
+        }
+
+        public Env root() { return root; }
+        public Namespace getNamespace() { return root.ns; }
+
         public MalVal get(String key) {
-            MalVal res = data.get(key);
-            if (res != null) {
-                return res;
-            } else if (outer != null) {
-                return outer.get(key);
-            } else {
-                return null;
+            for (Env e = this; e != null; e = e.outer) {
+                if (e.scope != null) {
+                    int i = e.scope.indexOf(key);
+                    if (i >= 0 && e.slots[i] != null) {
+                        return e.slots[i];
+                    }
+                }
+                if (e.outer == null) {
+                    Var var = e.rootVar(key, false);
+                    return var == null ? null : var.get();
+                }
+                if (e.data != null) {
+                    Var var = e.data.get(key);
+                    if (var != null && var.value != null) {
+                        return var.value;
+                    }
+                }
+            }
+            return null;
+        }
+
+        // The cell for name in this frame's map, created unbound if the
+        // name hasn't been defined yet
+        public Var var(String name) {
+            if (data == null) {
+                data = new HashMap<String,Var>();
+            }
+            Var var = data.get(name);
+            if (var == null) {
+                var = new Var(name, ns != null && ns.refer != null
+                                    ? ns.refer.env.var(name) : null);
+                data.put(name, var);
+                if (outer != null) {
+                    bindLocal(name);
+                }
+            }
+            return var;
+        }
+
+        // The cell a root frame has for key: its own, the one of the
+        // namespace it refers to, or for a qualified name (alias/name or
+        // namespace/name, where the prefix names one) the cell in that
+        // namespace. Any other name with a '/' is a plain name, as def!
+        // stores it. With create, a missing cell of its own is created.
+        Var rootVar(String key, Boolean create) {
+            final int slash = key.indexOf('/');
+            if (ns != null && slash > 0 && slash < key.length() - 1) {
+                final Namespace target = ns.qualifier(key.substring(0, slash));
+                if (target != null) {
+                    final String name = key.substring(slash + 1);
+                    return create ? target.env.var(name)
+                                  : target.env.rootVar(name, false);
+                }
+            }
+            Var var = data == null ? null : data.get(key);
+            if (var == null) {
+                if (create) {
+                    return var(key);
+                }
+                if (ns != null && ns.refer != null) {
+                    return ns.refer.env.rootVar(key, false);
+                }
+            }
+            return var;
+        }
+
+        // Like get, but goes straight to the frame and slot the symbol
+        // was found in last time, provided the frames in between have
+        // the same scopes (and so can't bind it)
+        public MalVal lookup(MalSymbol sym) {
+            final EnvSlot ref = sym.slot;
+            if (ref != null) {
+                final Scope[] scopes = ref.scopes;
+                final int last = scopes.length - 1;
+                Env e = this;
+                for (int d = 0; e != null && e.scope == scopes[d]; d++) {
+                    if (d == last) {
+                        MalVal res = null;
+                        if (ref.index >= 0) {
+                            res = e.slots[ref.index];
+                        } else if (ref.root == e) {
+                            res = ref.var.get();
+                        } else if (e.outer == null) {
+                            // another namespace
+                            break;
+                        } else if (e.data != null) {
+                            Var var = e.data.get(sym.getName());
+                            res = var == null ? null : var.value;
+                        }
+                        if (res != null) {
+                            return res;
+                        }
+                        break;
+                    }
+                    if (e.data != null && e.data.containsKey(sym.getName())) {
+                        break;
+                    }
+                    e = e.outer;
+                }
+            }
+            return resolve(sym);
+        }
+
+        MalVal resolve(MalSymbol sym) {
+            final String key = sym.getName();
+            List<Scope> scopes = new ArrayList<Scope>();
+            // a frame that binds the name but hasn't been given a value
+            // yet (a let* forward reference) makes the result uncachable
+            Boolean unbound = false;
+            Env e = this;
+            while (true) {
+                scopes.add(e.scope);
+                int i = -1;
+                MalVal res = null;
+                Var var = null;
+                if (e.scope != null && (i = e.scope.indexOf(key)) >= 0) {
+                    res = e.slots[i];
+                    unbound |= res == null;
+                }
+                if (res == null && e.outer == null) {
+                    // a definition in the namespace; if there isn't one
+                    // yet its cell is created for a later def! to fill
+                    var = e.rootVar(key, true);
+                    if (var == null) {
+                        return null;
+                    }
+                    if (!unbound) {
+                        sym.slot = new EnvSlot(
+                            scopes.toArray(new Scope[scopes.size()]), -1,
+                            e, var);
+                    }
+                    return var.get();
+                }
+                if (res == null && e.data != null) {
+                    i = -1;
+                    var = e.data.get(key);
+                    res = var == null ? null : var.value;
+                }
+                if (res != null) {
+                    if (!unbound) {
+                        sym.slot = new EnvSlot(
+                            scopes.toArray(new Scope[scopes.size()]), i,
+                            null, null);
+                    }
+                    return res;
+                }
+                e = e.outer;
             }
         }
 
         public Env set(MalSymbol key, MalVal value) {
-            data.put(key.getName(), value);
+            if (scope != null) {
+                int i = scope.indexOf(key.getName());
+                if (i >= 0) {
+                    return bind(i, value);
+                }
+            }
+            var(key.getName()).value = value;
             return this;
         }
     }
@@ -0,0 +1,411 @@
+package mal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mal.types.*;
+import mal.env.Env;
+
+public class interop {
+    //
+    // Java interop (stepA):
+    //
+    //   (. target method arg...)  a method of the value of target, or a
+    //                             static method when target names a class
+    //   (. Class FIELD)           a static field
+    //   (new Class arg...)        a constructor
+    //
+    // Classes are named in full, or by their simple name in java.lang;
+    // a symbol that is bound is a value, even if it also names a class.
+    // The first time a form is evaluated it is rewritten as a call of a
+    // Site on the forms of its arguments, and the call is cached on the
+    // form, so both evaluators run it as an ordinary call (a form whose
+    // target may be a class is checked again each time, as the symbol
+    // may be bound where the form runs next). A Site resolves its method
+    // for the classes of the values it is called with (receiver and
+    // arguments, which pick the overload) to a MethodHandle, and keeps
+    // the last CACHE of these: a call that matches one invokes its
+    // handle with no reflective lookup.
+    //
+    // Sites are cached on forms, which the loader's threads may share.
+    // Entries are immutable and a cache is only replaced into under the
+    // site's lock, so an unlocked read sees each slot either empty or
+    // holding a complete entry.
+    //
+    static final int CACHE = 4;
+
+    static final class Entry {
+        // Classes of the values the handle was resolved for (null: nil)
+        final Class<?>[] classes;
+        // Parameter types the values are converted to
+        final Class<?>[] params;
+        // Takes the values as an Object[], returns an Object
+        final MethodHandle mh;
+
+        Entry(Class<?>[] classes, Class<?>[] params, MethodHandle mh) {
+            this.classes = classes;
+            this.params = params;
+            this.mh = mh.asType(mh.type().generic())
+                        .asSpreader(Object[].class, params.length);
+        }
+
+        boolean matches(Object[] values) {
+            for (int i=0; i<values.length; i++) {
+                final Class<?> c = values[i] == null ? null : values[i].getClass();
+                if (c != classes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class Site extends MalFunction {
+        static final int METHOD = 0, STATIC = 1, NEW = 2, FIELD = 3;
+        final int kind;
+        // STATIC, NEW, FIELD: the class named
+        final Class<?> cls;
+        final String name;
+        final Entry[] entries = new Entry[CACHE];
+        // the slot the next entry replaces (guarded by this)
+        int next = 0;
+
+        Site(int kind, Class<?> cls, String name) {
+            this.kind = kind;
+            this.cls = cls;
+            this.name = name;
+        }
+
+        public MalVal apply(MalList args) throws MalThrowable {
+            final Object[] values = new Object[args.size()];
+            for (int i=0; i<values.length; i++) {
+                values[i] = java(args.nth(i));
+            }
+            Entry e = null;
+            for (int i=0; i<CACHE; i++) {
+                final Entry entry = entries[i];
+                if (entry == null) {
+                    break;
+                }
+                if (entry.matches(values)) {
+                    e = entry;
+                    break;
+                }
+            }
+            if (e == null) {
+                e = resolve(values);
+                synchronized (this) {
+                    entries[next] = e;
+                    next = (next + 1) % CACHE;
+                }
+            }
+            convert(e.params, values);
+            try {
+                return mal((Object)e.mh.invokeExact(values));
+            } catch (MalThrowable t) {
+                throw t;
+            } catch (RuntimeException t) {
+                throw t;
+            } catch (Error t) {
+                throw t;
+            } catch (Throwable t) {
+                throw new MalError(t.toString());
+            }
+        }
+
+        Entry resolve(Object[] values) throws MalThrowable {
+            final Class<?>[] classes = new Class<?>[values.length];
+            for (int i=0; i<values.length; i++) {
+                classes[i] = values[i] == null ? null : values[i].getClass();
+            }
+            try {
+                final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                if (kind == FIELD) {
+                    return new Entry(classes, new Class<?>[0],
+                                     lookup.unreflectGetter(cls.getField(name)));
+                } else if (kind == NEW) {
+                    Constructor<?> best = null;
+                    int best_score = -1;
+                    for (Constructor<?> c : cls.getConstructors()) {
+                        final int s = score(c.getParameterTypes(), values, 0);
+                        if (s > best_score) {
+                            best = c;
+                            best_score = s;
+                        }
+                    }
+                    if (best != null) {
+                        return new Entry(classes, best.getParameterTypes(),
+                                         lookup.unreflectConstructor(best).asFixedArity());
+                    }
+                } else {
+                    final boolean instance = kind == METHOD;
+                    if (instance && (values.length == 0 || values[0] == null)) {
+                        throw new MalError("." + name + ": target is nil");
+                    }
+                    final Class<?> target = instance ? classes[0] : cls;
+                    final int from = instance ? 1 : 0;
+                    Method best = null;
+                    int best_score = -1;
+                    for (Method m : target.getMethods()) {
+                        if (m.getName().equals(name) &&
+                            Modifier.isStatic(m.getModifiers()) != instance) {
+                            final int s = score(m.getParameterTypes(), values, from);
+                            if (s > best_score) {
+                                best = m;
+                                best_score = s;
+                            }
+                        }
+                    }
+                    if (best != null) {
+                        final List<Class<?>> params = new ArrayList<Class<?>>();
+                        if (instance) {
+                            params.add(Object.class);
+                        }
+                        params.addAll(Arrays.asList(best.getParameterTypes()));
+                        return new Entry(classes, params.toArray(new Class<?>[params.size()]),
+                                         unreflect(best, target).asFixedArity());
+                    }
+                }
+            } catch (NoSuchFieldException e) {
+                // as no method, below
+            } catch (IllegalAccessException e) {
+                throw new MalError(name + ": " + e.getMessage());
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (int i=(kind == METHOD ? 1 : 0); i<classes.length; i++) {
+                sb.append(sb.length() == 0 ? "" : ", ")
+                  .append(classes[i] == null ? "nil" : classes[i].getName());
+            }
+            throw new MalError("no " + (kind == NEW ? "constructor" : "method " + name) +
+                               " of " + (kind == METHOD ? classes[0] : cls).getName() +
+                               " for (" + sb + ")");
+        }
+    }
+
+    // A handle for m, called on a receiver of class target. A public
+    // method of a class that is not accessible (a private implementation
+    // class, or a package a module does not export) is called through
+    // a public supertype that declares it.
+    static MethodHandle unreflect(Method m, Class<?> target)
+            throws IllegalAccessException {
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            return lookup.unreflect(m);
+        } catch (IllegalAccessException e) {
+            final List<Class<?>> types = new ArrayList<Class<?>>();
+            types.add(target);
+            for (int i=0; i<types.size(); i++) {
+                final Class<?> c = types.get(i);
+                if (c.getSuperclass() != null) {
+                    types.add(c.getSuperclass());
+                }
+                types.addAll(Arrays.asList(c.getInterfaces()));
+                if (i > 0 && Modifier.isPublic(c.getModifiers())) {
+                    try {
+                        return lookup.unreflect(c.getMethod(m.getName(), m.getParameterTypes()));
+                    } catch (NoSuchMethodException | IllegalAccessException x) {
+                        // try the next supertype
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    // How well values (from from) fit params: -1 if they don't,
+    // otherwise higher for closer types
+    static int score(Class<?>[] params, Object[] values, int from) {
+        if (params.length != values.length - from) {
+            return -1;
+        }
+        int total = 0;
+        for (int i=0; i<params.length; i++) {
+            final int s = fit(params[i], values[from + i]);
+            if (s < 0) {
+                return -1;
+            }
+            total += s;
+        }
+        return total;
+    }
+
+    static Class<?> box(Class<?> c) {
+        return c.isPrimitive() ? MethodType.methodType(c).wrap().returnType() : c;
+    }
+
+    static int fit(Class<?> param, Object value) {
+        if (value == null) {
+            return param.isPrimitive() ? -1 : 1;
+        }
+        final Class<?> p = box(param);
+        if (p == value.getClass()) {
+            return 3;
+        } else if (p.isInstance(value)) {
+            return 2;
+        } else if (value instanceof Integer &&
+                   (p == Long.class || p == Double.class || p == Float.class ||
+                    p == Short.class || p == Byte.class)) {
+            return 1;
+        } else if (value instanceof String && p == Character.class &&
+                   ((String)value).length() == 1) {
+            return 1;
+        }
+        return -1;
+    }
+
+    // Integers and one-character strings to the parameter types that
+    // fit chose for them
+    static void convert(Class<?>[] params, Object[] values) {
+        for (int i=0; i<params.length; i++) {
+            final Class<?> p = box(params[i]);
+            final Object v = values[i];
+            if (v instanceof Integer && p != Integer.class && !p.isInstance(v)) {
+                final int n = (Integer)v;
+                if (p == Long.class) {
+                    values[i] = (long)n;
+                } else if (p == Double.class) {
+                    values[i] = (double)n;
+                } else if (p == Float.class) {
+                    values[i] = (float)n;
+                } else if (p == Short.class) {
+                    values[i] = (short)n;
+                } else if (p == Byte.class) {
+                    values[i] = (byte)n;
+                }
+            } else if (v instanceof String && p == Character.class) {
+                values[i] = ((String)v).charAt(0);
+            }
+        }
+    }
+
+    static Object java(MalVal mv) {
+        if (mv == types.Nil) {
+            return null;
+        } else if (mv == types.True) {
+            return Boolean.TRUE;
+        } else if (mv == types.False) {
+            return Boolean.FALSE;
+        } else if (mv instanceof MalInteger) {
+            return ((MalInteger)mv).getValue();
+        } else if (mv instanceof MalString) {
+            return ((MalString)mv).getValue();
+        } else if (mv instanceof MalJavaObject) {
+            return ((MalJavaObject)mv).getValue();
+        }
+        return mv;
+    }
+
+    static MalVal mal(Object o) {
+        if (o == null) {
+            return types.Nil;
+        } else if (o instanceof MalVal) {
+            return (MalVal)o;
+        } else if (o instanceof Boolean) {
+            return (Boolean)o ? types.True : types.False;
+        } else if (o instanceof Integer || o instanceof Short || o instanceof Byte) {
+            return new MalInteger(((Number)o).intValue());
+        } else if (o instanceof Long && (Long)o == ((Long)o).intValue()) {
+            return new MalInteger(((Long)o).intValue());
+        } else if (o instanceof String || o instanceof Character) {
+            return new MalString(o.toString());
+        }
+        return new MalJavaObject(o);
+    }
+
+    // The class a symbol names, or null
+    static Class<?> find_class(MalVal sym) {
+        if (!(sym instanceof MalSymbol)) {
+            return null;
+        }
+        final String name = ((MalSymbol)sym).getName();
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            if (name.indexOf('.') < 0) {
+                try {
+                    return Class.forName("java.lang." + name);
+                } catch (ClassNotFoundException x) {
+                    // not a class
+                }
+            }
+            return null;
+        }
+    }
+
+    // The call cached on an interop form; target_class is set when its
+    // target is a symbol naming a class, which is a class (a static
+    // call) only where the symbol is not bound
+    static final class Form {
+        final MalList call;
+        final Class<?> target_class;
+        final boolean is_static;
+
+        Form(MalList call, Class<?> target_class, boolean is_static) {
+            this.call = call;
+            this.target_class = target_class;
+            this.is_static = is_static;
+        }
+    }
+
+    // The call an interop form is evaluated as (cached on the form)
+    public static MalList form(MalList ast, Env env) throws MalThrowable {
+        if (ast.analysis instanceof Form) {
+            final Form f = (Form)ast.analysis;
+            if (f.target_class == null ||
+                f.is_static == (env.get(((MalSymbol)ast.nth(1)).getName()) == null)) {
+                return f.call;
+            }
+        }
+        final String op = ((MalSymbol)ast.nth(0)).getName();
+        final MalList call;
+        Class<?> target_class = null;
+        if (op.equals("new")) {
+            final Class<?> cls = find_class(ast.nth(1));
+            if (cls == null) {
+                throw new MalError("new: class not found: " + printer._pr_str(ast.nth(1), true));
+            }
+            call = new MalList(new Site(Site.NEW, cls, "new"));
+            call.value.addAll(ast.getList().subList(2, ast.size()));
+        } else {
+            if (ast.size() < 3 || !(ast.nth(2) instanceof MalSymbol)) {
+                throw new MalError(".: expected (. target method arg...)");
+            }
+            final MalVal target = ast.nth(1);
+            final String name = ((MalSymbol)ast.nth(2)).getName();
+            // a symbol is a class only when it is not bound
+            target_class = find_class(target);
+            final Class<?> cls = target_class != null &&
+                env.get(((MalSymbol)target).getName()) == null
+                ? target_class : null;
+            if (cls == null) {
+                call = new MalList(new Site(Site.METHOD, null, name), target);
+            } else if (ast.size() == 3 && is_static_field(cls, name)) {
+                call = new MalList(new Site(Site.FIELD, cls, name));
+            } else {
+                call = new MalList(new Site(Site.STATIC, cls, name));
+            }
+            call.value.addAll(ast.getList().subList(3, ast.size()));
+        }
+        ast.analysis = new Form(call, target_class,
+                                call.nth(0) instanceof Site &&
+                                ((Site)call.nth(0)).kind != Site.METHOD);
+        return call;
+    }
+
+    static boolean is_static_field(Class<?> cls, String name) {
+        try {
+            final Field f = cls.getField(name);
+            return Modifier.isStatic(f.getModifiers());
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package mal;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mal.types.*;
+import mal.reader.ParseError;
+
+public class json {
+    //
+    // JSON is parsed straight into mal values from a reader.Reader
+    // buffer, so a document read from a file or stdin is decoded as it
+    // is scanned: objects become hash-maps (with keyword keys when
+    // keywordize is set), arrays vectors, and null, true and false the
+    // mal constants. mal has only int integers, so other numbers are
+    // kept as Java objects (MalJavaObject), which json-write writes back:
+    // a larger integer as a Long (or BigInteger beyond that), and one
+    // with a fraction or exponent as a Double (or BigDecimal beyond its
+    // range).
+    //
+    static final class Parser {
+        final reader.Reader rdr;
+        final boolean keywordize;
+
+        Parser(reader.Reader rdr, boolean keywordize) {
+            this.rdr = rdr;
+            this.keywordize = keywordize;
+        }
+
+        // The next character after whitespace, or -1 at the end
+        int peek() throws ParseError {
+            while (rdr.more()) {
+                final char c = rdr.buf[rdr.pos];
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                    rdr.pos++;
+                } else {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        ParseError error(String expected) throws ParseError {
+            final int c = peek();
+            return new ParseError("json: expected " + expected + ", got " +
+                                  (c == -1 ? "EOF" : "'" + (char)c + "'"));
+        }
+
+        void expect(char c) throws ParseError {
+            if (peek() != c) {
+                throw error("'" + c + "'");
+            }
+            rdr.pos++;
+        }
+
+        MalVal value() throws ParseError {
+            switch (peek()) {
+                case '{': return object();
+                case '[': return array();
+                case '"': return new MalString(string());
+                case 't': return literal("true", types.True);
+                case 'f': return literal("false", types.False);
+                case 'n': return literal("null", types.Nil);
+                default:  return number();
+            }
+        }
+
+        MalVal literal(String word, MalVal value) throws ParseError {
+            for (int i=0; i<word.length(); i++) {
+                if (!rdr.more() || rdr.buf[rdr.pos] != word.charAt(i)) {
+                    throw error(word);
+                }
+                rdr.pos++;
+            }
+            return value;
+        }
+
+        MalVal number() throws ParseError {
+            rdr.mark = rdr.pos;
+            boolean integer = true;
+            while (rdr.more()) {
+                final char c = rdr.buf[rdr.pos];
+                if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+                    integer = false;
+                } else if (c != '-' && (c < '0' || c > '9')) {
+                    break;
+                }
+                rdr.pos++;
+            }
+            final String text = new String(rdr.buf, rdr.mark, rdr.pos - rdr.mark);
+            rdr.mark = -1;
+            if (text.isEmpty()) {
+                throw error("a value");
+            }
+            try {
+                if (!integer) {
+                    final Double d = Double.valueOf(text);
+                    return new MalJavaObject(d.isInfinite() ? new BigDecimal(text) : d);
+                }
+                final BigInteger n = new BigInteger(text);
+                if (n.bitLength() < 32) {
+                    return new MalInteger(n.intValue());
+                } else if (n.bitLength() < 64) {
+                    return new MalJavaObject(n.longValue());
+                }
+                return new MalJavaObject(n);
+            } catch (NumberFormatException e) {
+                throw new ParseError("json: bad number " + text);
+            }
+        }
+
+        String string() throws ParseError {
+            rdr.mark = ++rdr.pos;
+            // Without escapes the value is the characters up to the quote
+            while (rdr.more() && rdr.buf[rdr.pos] != '"' && rdr.buf[rdr.pos] != '\\') {
+                rdr.pos++;
+            }
+            final int start = rdr.mark;
+            rdr.mark = -1;
+            if (rdr.pos < rdr.end && rdr.buf[rdr.pos] == '"') {
+                return new String(rdr.buf, start, rdr.pos++ - start);
+            }
+            final StringBuilder sb = new StringBuilder(rdr.pos - start + 16);
+            sb.append(rdr.buf, start, rdr.pos - start);
+            while (true) {
+                if (!rdr.more()) {
+                    throw new ParseError("json: expected '\"', got EOF");
+                }
+                final char c = rdr.buf[rdr.pos++];
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c != '\\') {
+                    sb.append(c);
+                } else if (!rdr.more()) {
+                    throw new ParseError("json: expected '\"', got EOF");
+                } else {
+                    final char e = rdr.buf[rdr.pos++];
+                    switch (e) {
+                        case '"': case '\\': case '/': sb.append(e); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'u': sb.append(unicode()); break;
+                        default:
+                            throw new ParseError("json: bad escape '\\" + e + "'");
+                    }
+                }
+            }
+        }
+
+        // The four hex digits of a unicode escape
+        char unicode() throws ParseError {
+            int code = 0;
+            for (int i=0; i<4; i++) {
+                final int digit = rdr.more() ? Character.digit(rdr.buf[rdr.pos], 16) : -1;
+                if (digit < 0) {
+                    throw error("a hex digit");
+                }
+                code = code * 16 + digit;
+                rdr.pos++;
+            }
+            return (char)code;
+        }
+
+        MalVector array() throws ParseError {
+            rdr.pos++;
+            final List<MalVal> items = new ArrayList<MalVal>();
+            if (peek() == ']') {
+                rdr.pos++;
+                return new MalVector(items);
+            }
+            while (true) {
+                items.add(value());
+                if (peek() == ']') {
+                    rdr.pos++;
+                    return new MalVector(items);
+                }
+                expect(',');
+            }
+        }
+
+        MalHashMap object() throws ParseError {
+            rdr.pos++;
+            final Map<String,MalVal> entries = new HashMap<String,MalVal>();
+            if (peek() == '}') {
+                rdr.pos++;
+                return new MalHashMap(entries);
+            }
+            while (true) {
+                if (peek() != '"') {
+                    throw error("a string key");
+                }
+                final String key = string();
+                expect(':');
+                entries.put(keywordize ? "\u029e" + key : key, value());
+                if (peek() == '}') {
+                    rdr.pos++;
+                    return new MalHashMap(entries);
+                }
+                expect(',');
+            }
+        }
+    }
+
+    // A whole document
+    public static MalVal read(String str, boolean keywordize)
+            throws ParseError {
+        final Parser p = new Parser(new reader.Reader(str), keywordize);
+        final MalVal value = p.value();
+        if (p.peek() != -1) {
+            throw p.error("EOF");
+        }
+        return value;
+    }
+
+    // The elements of a top-level array, parsed one at a time as they are
+    // asked for; the input is closed after the last
+    public static Producer elements(final reader.Reader rdr,
+                                    final boolean keywordize) {
+        return new Producer() {
+            final Parser p = new Parser(rdr, keywordize);
+            boolean started = false, done = false;
+
+            public MalVal next() throws MalThrowable {
+                if (done) {
+                    return null;
+                }
+                if (!started) {
+                    started = true;
+                    p.expect('[');
+                    if (p.peek() == ']') {
+                        return end();
+                    }
+                } else if (p.peek() == ']') {
+                    return end();
+                } else {
+                    p.expect(',');
+                }
+                return p.value();
+            }
+
+            MalVal end() {
+                rdr.pos++;
+                done = true;
+                rdr.close();
+                return null;
+            }
+        };
+    }
+
+    //
+    // Writing appends to one StringBuilder. Keywords and symbols are
+    // written as strings of their names, lists and vectors as arrays,
+    // nil as null and the numbers read as Java objects as numbers; other
+    // values (functions, atoms) cannot be written.
+    //
+    public static String write(MalVal mv) throws MalThrowable {
+        final StringBuilder sb = new StringBuilder();
+        write(sb, mv);
+        return sb.toString();
+    }
+
+    static void write(StringBuilder sb, MalVal mv) throws MalThrowable {
+        if (mv instanceof MalString) {
+            string(sb, ((MalString)mv).getValue());
+        } else if (mv instanceof MalInteger || mv == types.True ||
+                   mv == types.False) {
+            sb.append(mv.toString());
+        } else if (mv == types.Nil) {
+            sb.append("null");
+        } else if (mv instanceof MalJavaObject &&
+                   number(((MalJavaObject)mv).getValue())) {
+            sb.append(((MalJavaObject)mv).getValue().toString());
+        } else if (mv instanceof MalSymbol) {
+            string(sb, ((MalSymbol)mv).getName());
+        } else if (mv instanceof MalList) {
+            sb.append('[');
+            boolean first = true;
+            for (Object o : ((MalList)mv).getList()) {
+                if (!first) { sb.append(','); }
+                first = false;
+                write(sb, (MalVal)o);
+            }
+            sb.append(']');
+        } else if (mv instanceof MalHashMap) {
+            sb.append('{');
+            boolean first = true;
+            for (Object o : ((MalHashMap)mv)._entries()) {
+                final Map.Entry<String,MalVal> entry = (Map.Entry<String,MalVal>)o;
+                if (!first) { sb.append(','); }
+                first = false;
+                string(sb, entry.getKey());
+                sb.append(':');
+                write(sb, entry.getValue());
+            }
+            sb.append('}');
+        } else {
+            throw new MalError("json-write: cannot write " +
+                               printer._pr_str(mv, true));
+        }
+    }
+
+    // A number JSON can write as its toString (not NaN or infinite)
+    static boolean number(Object o) {
+        if (o instanceof Double || o instanceof Float) {
+            final double d = ((Number)o).doubleValue();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+        return o instanceof Long || o instanceof BigInteger ||
+               o instanceof BigDecimal;
+    }
+
+    // A string, or a keyword as a string of its name; the escapes of
+    // printer.escape are all valid JSON
+    static void string(StringBuilder sb, String value) {
+        sb.append('"');
+        if (value.length() > 0 && value.charAt(0) == '\u029e') {
+            printer.escape(sb, value.substring(1));
+        } else {
+            printer.escape(sb, value);
+        }
+        sb.append('"');
+    }
+}
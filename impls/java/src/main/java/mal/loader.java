@@ -0,0 +1,253 @@
+package mal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+
+import mal.types.*;
+import mal.env.Namespace;
+import mal.reader;
+
+//
+// Source files loaded by load, load-file-once and require. The forms
+// of a file are parsed once and cached under its canonical path until
+// it changes. When a file has been parsed, the files it loads at its
+// top level are parsed in the background, so they are usually ready by
+// the time evaluation gets to them.
+//
+public class loader {
+    static final class Module {
+        final long mtime, length;
+        // (do forms... nil)
+        final FutureTask<MalList> forms;
+
+        Module(long mtime, long length, FutureTask<MalList> forms) {
+            this.mtime = mtime;
+            this.length = length;
+            this.forms = forms;
+        }
+    }
+
+    static final ConcurrentHashMap<String,Module> cache =
+        new ConcurrentHashMap<String,Module>();
+
+    static final ExecutorService pool = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mal-loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // The cached module for file, or a new one (not yet run) that
+    // replaced a missing or stale entry
+    static Module module(final File file, final String[] load_path)
+            throws IOException {
+        final String key = file.getCanonicalPath();
+        final long mtime = file.lastModified(), length = file.length();
+        while (true) {
+            final Module m = cache.get(key);
+            if (m != null && m.mtime == mtime && m.length == length) {
+                return m;
+            }
+            final Module fresh = new Module(mtime, length,
+                new FutureTask<MalList>(new Callable<MalList>() {
+                    public MalList call() throws Exception {
+                        return parse(file, load_path);
+                    }
+                }));
+            if (m == null ? cache.putIfAbsent(key, fresh) == null
+                          : cache.replace(key, m, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    static MalList parse(File file, String[] load_path) throws Exception {
+        final String src;
+        try {
+            src = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+        } catch (java.nio.file.NoSuchFileException e) {
+            throw new FileNotFoundException(
+                file.getPath() + " (No such file or directory)");
+        }
+        final MalList forms = (MalList)reader.read_str("(do " + src + "\nnil)");
+        prefetch(forms, load_path);
+        return forms;
+    }
+
+    // The forms of the file at path as (do forms... nil), parsed now
+    // unless the cache has them or a worker is already on it
+    public static MalList forms(String path) throws MalThrowable {
+        try {
+            final Module m = module(new File(path), load_path());
+            m.forms.run();
+            return m.forms.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MalThrowable) {
+                throw (MalThrowable)e.getCause();
+            }
+            throw new MalError(e.getCause().getMessage());
+        } catch (IOException e) {
+            throw new MalError(e.getMessage());
+        } catch (InterruptedException e) {
+            throw new MalError("load: interrupted");
+        }
+    }
+
+    //
+    // Large files (data rather than source) are not cached: each form is
+    // evaluated as soon as it is read, so only one is held at a time
+    //
+    static final long STREAM_SIZE = 1 << 20;
+
+    public static boolean streamed(String path) {
+        return TailCall.evaluator != null &&
+               new File(path).length() >= STREAM_SIZE;
+    }
+
+    public static MalVal eval_stream(String path) throws MalThrowable {
+        final reader.Reader rdr = reader.open(path);
+        try {
+            MalVal form;
+            while ((form = reader.read_next(rdr)) != null) {
+                TailCall.evaluator.eval(form, core.load_env());
+            }
+        } finally {
+            rdr.close();
+        }
+        return types.Nil;
+    }
+
+    //
+    // Dependencies: the files a module loads with a literal argument at
+    // its top level, through load, load-file, load-file-once, require
+    // or ns
+    //
+    static void prefetch(MalList forms, String[] load_path) {
+        for (int i=1; i<forms.size(); i++) {
+            if (!(forms.nth(i) instanceof MalList) || !forms.nth(i).list_Q()) {
+                continue;
+            }
+            final MalList form = (MalList)forms.nth(i);
+            if (form.size() < 2 || !(form.nth(0) instanceof MalSymbol)) {
+                continue;
+            }
+            final String head = ((MalSymbol)form.nth(0)).getName();
+            if (head.equals("do")) {
+                prefetch(form, load_path);
+            } else if (head.equals("load") || head.equals("load-file") ||
+                       head.equals("load-file-once")) {
+                if (form.nth(1) instanceof MalString) {
+                    prefetch(new File(((MalString)form.nth(1)).getValue()),
+                             load_path);
+                }
+            } else if (head.equals("require")) {
+                for (int j=1; j<form.size(); j++) {
+                    final MalVal spec = form.nth(j);
+                    if (spec instanceof MalList && spec.list_Q() &&
+                        ((MalList)spec).size() == 2) {
+                        prefetch_lib(((MalList)spec).nth(1), load_path);
+                    }
+                }
+            } else if (head.equals("ns")) {
+                for (int j=2; j<form.size(); j++) {
+                    if (form.nth(j) instanceof MalList) {
+                        final MalList clause = (MalList)form.nth(j);
+                        for (int k=1; k<clause.size(); k++) {
+                            prefetch_lib(clause.nth(k), load_path);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void prefetch_lib(MalVal spec, String[] load_path) {
+        if (spec instanceof MalList && ((MalList)spec).size() > 0) {
+            spec = ((MalList)spec).nth(0);
+        }
+        if (spec instanceof MalSymbol) {
+            final File file = lib_file(((MalSymbol)spec).getName(), load_path);
+            if (file != null) {
+                prefetch(file, load_path);
+            }
+        }
+    }
+
+    static void prefetch(File file, String[] load_path) {
+        try {
+            final Module m = module(file, load_path);
+            if (!m.forms.isDone()) {
+                pool.execute(m.forms);
+            }
+        } catch (IOException e) {
+            // reported if it is ever loaded
+        }
+    }
+
+    //
+    // Libraries (require)
+    //
+
+    // The directories in *load-path* in the current namespace (its own
+    // definition, or core's)
+    static String[] load_path() {
+        final Namespace ns = Namespace.current() != null
+                             ? Namespace.current() : Namespace.find("core");
+        final MalVal dirs = ns == null ? null : ns.env.get("*load-path*");
+        if (!(dirs instanceof MalList)) {
+            return new String[0];
+        }
+        final String[] res = new String[((MalList)dirs).size()];
+        for (int i=0; i<res.length; i++) {
+            res[i] = ((MalString)((MalList)dirs).nth(i)).getValue();
+        }
+        return res;
+    }
+
+    // The file of library name (foo.bar is foo/bar.mal) in load_path
+    static File lib_file(String name, String[] load_path) {
+        final String file = name.replace('.', '/') + ".mal";
+        for (String dir : load_path) {
+            final File f = new File(dir, file);
+            if (f.isFile()) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    public static String lib_path(String name) {
+        final File f = lib_file(name, load_path());
+        return f == null ? null : f.getPath();
+    }
+
+    //
+    // load-file-once: files already loaded, per namespace
+    //
+    static final Set<String> loaded = new HashSet<String>();
+
+    public static synchronized Boolean first_load(String path)
+            throws MalThrowable {
+        final Namespace ns = Namespace.current();
+        try {
+            return loaded.add((ns == null ? "" : ns.name) + "\u0000" +
+                              new File(path).getCanonicalPath());
+        } catch (IOException e) {
+            throw new MalError(e.getMessage());
+        }
+    }
+}
@@ -1,45 +1,284 @@
 package mal;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.List;
-import java.util.ArrayList;
-import com.google.common.base.Joiner;
 import java.util.Map;
-import org.apache.commons.lang3.StringEscapeUtils;
 
 import mal.types.MalVal;
 import mal.types.MalList;
+import mal.types.MalString;
+import mal.types.MalHashMap;
+import mal.types.MalAtom;
 
 public class printer {
 
-    public static String join(List<MalVal> value,
-                              String delim, Boolean print_readably) {
-        ArrayList<String> strs = new ArrayList<String>();
-        for (MalVal mv : value) {
-            strs.add(mv.toString(print_readably));
+    //
+    // Values are printed in one pass into a single StringBuilder. When
+    // printing to a stream, the builder is written out whenever it
+    // passes CHUNK characters, so a large value is never held as text.
+    //
+    static final int CHUNK = 8192;
+
+    public static class Printer {
+        final StringBuilder sb = new StringBuilder();
+        // null: the text is kept in sb
+        final PrintStream out;
+        final Boolean print_readably;
+        // Elements printed per collection and depth of nested collections
+        // printed (-1: no limit); "..." and "#" stand for the rest
+        int length = -1, level = -1;
+        // Printing stops once sb is longer (see Pretty)
+        int max = Integer.MAX_VALUE;
+
+        public Printer(PrintStream out, Boolean print_readably) {
+            this.out = out;
+            this.print_readably = print_readably;
         }
-        return Joiner.on(delim).join(strs);
-    }
 
-    public static String join(Map<String,MalVal> value,
-                              String delim, Boolean print_readably) {
-        ArrayList<String> strs = new ArrayList<String>();
-        for (Map.Entry<String, MalVal> entry : value.entrySet()) {
-            if (entry.getKey().length() > 0 &&
-                entry.getKey().charAt(0) == '\u029e') {
-                strs.add(":" + entry.getKey().substring(1));
+        public Printer limit(int length, int level) {
+            this.length = length;
+            this.level = level;
+            return this;
+        }
+
+        void chunk() {
+            if (out != null && sb.length() >= CHUNK) {
+                out.append(sb);
+                sb.setLength(0);
+            }
+        }
+
+        public Printer print(MalVal mv) {
+            return print(mv, 0);
+        }
+
+        Printer print(MalVal mv, int depth) {
+            if (sb.length() > max) {
+                return this;
+            }
+            if (mv instanceof MalString) {
+                string(((MalString)mv).getValue());
+            } else if (level >= 0 && depth >= level &&
+                       (mv instanceof MalList || mv instanceof MalHashMap)) {
+                sb.append('#');
+            } else if (mv instanceof MalList) {
+                final MalList ml = (MalList)mv;
+                sb.append(ml.start);
+                int i = 0;
+                for (Object o : ml.getList()) {
+                    if (sb.length() > max) { break; }
+                    if (i > 0) { sb.append(' '); }
+                    if (i++ == length) { sb.append("..."); break; }
+                    print((MalVal)o, depth + 1);
+                }
+                sb.append(ml.end);
+            } else if (mv instanceof MalHashMap) {
+                sb.append('{');
+                int i = 0;
+                for (Object o : ((MalHashMap)mv)._entries()) {
+                    final Map.Entry<String,MalVal> entry = (Map.Entry<String,MalVal>)o;
+                    if (sb.length() > max) { break; }
+                    if (i > 0) { sb.append(' '); }
+                    if (i++ == length) { sb.append("..."); break; }
+                    string(entry.getKey());
+                    sb.append(' ');
+                    print(entry.getValue(), depth + 1);
+                }
+                sb.append('}');
+            } else if (mv instanceof MalAtom) {
+                sb.append("(atom ");
+                print(((MalAtom)mv).value, depth);
+                sb.append(')');
+            } else {
+                sb.append(mv.toString(print_readably));
+            }
+            chunk();
+            return this;
+        }
+
+        public Printer append(String s) {
+            sb.append(s);
+            return this;
+        }
+
+        // A string or keyword (also a hash-map key)
+        void string(String value) {
+            if (value.length() > 0 && value.charAt(0) == '\u029e') {
+                sb.append(':').append(value, 1, value.length());
             } else if (print_readably) {
-                strs.add("\"" + entry.getKey().toString() + "\"");
+                sb.append('"');
+                escape(sb, value);
+                sb.append('"');
+            } else {
+                sb.append(value);
+            }
+        }
+
+        // Writes out what is left (printing to a stream)
+        public void finish() {
+            if (out != null) {
+                out.append(sb);
+                sb.setLength(0);
+            }
+        }
+
+        @Override public String toString() {
+            return sb.toString();
+        }
+    }
+
+    //
+    // Pretty printing within a line width. A collection is printed on one
+    // line when it fits in what is left of the line; otherwise each of
+    // its elements (each key and value of a map) starts a new line,
+    // aligned after the opening bracket. Whether a value fits is found by
+    // printing it flat into a scratch Printer that gives up at the end of
+    // the line, so no value costs more than a line width to try and the
+    // layout is linear in the size of the value.
+    //
+    public static class Pretty {
+        final Printer out, flat;
+        final int width;
+        int column = 0;
+
+        public Pretty(PrintStream stream, int width, int length, int level) {
+            out = new Printer(stream, true).limit(length, level);
+            flat = new Printer(null, true).limit(length, level);
+            this.width = width;
+        }
+
+        void text(String s) {
+            out.sb.append(s);
+            column += s.length();
+        }
+
+        void newline(int indent) {
+            out.sb.append('\n');
+            for (int i=0; i<indent; i++) {
+                out.sb.append(' ');
+            }
+            column = indent;
+            out.chunk();
+        }
+
+        // Prints mv flat if it fits in the line (or cannot be broken)
+        boolean flat(MalVal mv, int depth) {
+            flat.sb.setLength(0);
+            flat.max = Math.max(0, width - column);
+            flat.print(mv, depth);
+            final boolean breakable = mv instanceof MalList ||
+                                      mv instanceof MalHashMap ||
+                                      mv instanceof MalAtom;
+            if (flat.sb.length() > flat.max) {
+                if (breakable) {
+                    return false;
+                }
+                flat.max = Integer.MAX_VALUE;
+                flat.sb.setLength(0);
+                flat.print(mv, depth);
+            }
+            out.sb.append(flat.sb);
+            column += flat.sb.length();
+            out.chunk();
+            return true;
+        }
+
+        public Pretty pprint(MalVal mv) {
+            return pprint(mv, 0);
+        }
+
+        Pretty pprint(MalVal mv, int depth) {
+            if (flat(mv, depth)) {
+                return this;
+            }
+            if (mv instanceof MalList) {
+                final MalList ml = (MalList)mv;
+                text(ml.start);
+                final int indent = column;
+                int i = 0;
+                for (Object o : ml.getList()) {
+                    if (i > 0) { newline(indent); }
+                    if (i++ == out.length) { text("..."); break; }
+                    pprint((MalVal)o, depth + 1);
+                }
+                text(ml.end);
+            } else if (mv instanceof MalHashMap) {
+                text("{");
+                final int indent = column;
+                int i = 0;
+                for (Object o : ((MalHashMap)mv)._entries()) {
+                    final Map.Entry<String,MalVal> entry = (Map.Entry<String,MalVal>)o;
+                    if (i > 0) { newline(indent); }
+                    if (i++ == out.length) { text("..."); break; }
+                    flat.sb.setLength(0);
+                    flat.string(entry.getKey());
+                    text(flat.sb.toString());
+                    text(" ");
+                    pprint(entry.getValue(), depth + 1);
+                }
+                text("}");
             } else {
-                strs.add(entry.getKey().toString());
+                text("(atom ");
+                pprint(((MalAtom)mv).value, depth);
+                text(")");
             }
-            strs.add(entry.getValue().toString(print_readably));
+            return this;
+        }
+
+        // Ends the line and writes out what is left
+        public void finish() {
+            out.sb.append('\n');
+            out.finish();
         }
-        return Joiner.on(" ").join(strs);
+    }
+
+    // Java string escapes, with Unicode escapes for characters outside
+    // printable ASCII
+    static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    public static void escape(StringBuilder sb, String value) {
+        for (int i=0; i<value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\f': sb.append("\\f"); break;
+                case '\r': sb.append("\\r"); break;
+                default:
+                    if (c < 32 || c > 0x7f) {
+                        sb.append('\\').append('u')
+                          .append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+                          .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+
+    public static String join(List<MalVal> value,
+                              String delim, Boolean print_readably) {
+        final Printer p = new Printer(null, print_readably);
+        boolean first = true;
+        for (MalVal mv : value) {
+            if (!first) { p.append(delim); }
+            first = false;
+            p.print(mv);
+        }
+        return p.toString();
     }
 
     public static String _pr_str(MalVal mv,
                                  Boolean print_readably) {
-        return mv.toString(print_readably);
+        return new Printer(null, print_readably).print(mv).toString();
     }
 
     public static String _pr_str_args(MalList args,
@@ -47,7 +286,47 @@ public class printer {
         return join(args.getList(), sep, print_readably);
     }
 
+    // Prints args and a newline to out, without building the whole text
+    public static void println(PrintStream out, List<MalVal> args,
+                               String sep, Boolean print_readably) {
+        final Printer p = new Printer(out, print_readably);
+        boolean first = true;
+        for (MalVal mv : args) {
+            if (!first) { p.append(sep); }
+            first = false;
+            p.print(mv);
+        }
+        p.append("\n").finish();
+    }
+
+    //
+    // Buffered standard output: System.out is replaced by a stream with a
+    // large buffer that is not flushed at each line. It is flushed before
+    // reading a line (readline), on the flush builtin and at exit.
+    //
+    public static void buffer_stdout() {
+        String encoding = System.getProperty("stdout.encoding",
+            System.getProperty("sun.stdout.encoding"));
+        if (encoding == null || !Charset.isSupported(encoding)) {
+            encoding = Charset.defaultCharset().name();
+        }
+        try {
+            System.setOut(new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, encoding));
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                System.out.flush();
+            }
+        });
+    }
+
     public static String escapeString(String value) {
-        return StringEscapeUtils.escapeJava(value);
+        final StringBuilder sb = new StringBuilder(value.length() + 16);
+        escape(sb, value);
+        return sb.toString();
     }
 }
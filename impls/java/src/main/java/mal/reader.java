@@ -1,9 +1,25 @@
 package mal;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.apache.commons.lang3.StringEscapeUtils;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import com.google.common.cache.CacheBuilder;
 import mal.types.*;
 
 public class reader {
@@ -13,85 +29,269 @@ public class reader {
         }
     }
 
+    //
+    // Scanner over the source characters. Forms are read straight from
+    // the buffer in one pass: there is no token list, and an atom is
+    // classified where it lies before its value is built.
+    //
+    // A Reader over a java.io.Reader holds only a window of the input:
+    // more() refills the buffer when the scan reaches its end, keeping
+    // the atom being scanned (from mark) and dropping what was read.
+    //
     public static class Reader {
-        ArrayList<String> tokens;
-        Integer position;
-        public Reader(ArrayList<String> t) {
-            tokens = t;
-            position = 0;
+        char[] buf;
+        int pos, end;
+        // Start of the atom being scanned, or -1
+        int mark = -1;
+        java.io.Reader in = null;
+        // Set to share repeated data (see Interner)
+        public Interner interner = null;
+        // Symbols read so far: a form that added none is plain data
+        int symbols = 0;
+
+        public Reader(String str) {
+            buf = str.toCharArray();
+            pos = 0;
+            end = buf.length;
+        }
+        public Reader(char[] buf, int end) {
+            this.buf = buf;
+            pos = 0;
+            this.end = end;
+        }
+        public Reader(java.io.Reader in) {
+            this.in = in;
+            buf = new char[65536];
+            pos = 0;
+            end = 0;
         }
 
-        public String peek() {
-            if (position >= tokens.size()) {
-                return null;
-            } else {
-                return tokens.get(position);
+        // Whether there is a character at pos
+        boolean more() throws ParseError {
+            return pos < end || fill();
+        }
+
+        boolean fill() throws ParseError {
+            if (in == null) {
+                return false;
+            }
+            final int keep = mark >= 0 ? mark : pos;
+            if (keep > 0) {
+                System.arraycopy(buf, keep, buf, 0, end - keep);
+                end -= keep;
+                pos -= keep;
+                if (mark >= 0) { mark -= keep; }
+            }
+            if (end == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            try {
+                final int n = in.read(buf, end, buf.length - end);
+                if (n <= 0) {
+                    return false;
+                }
+                end += n;
+                return true;
+            } catch (IOException e) {
+                throw new ParseError("read error: " + e.getMessage());
             }
         }
-        public String next() {
-            return tokens.get(position++);
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read anyway
+                }
+                in = null;
+            }
         }
-    }
 
-    public static ArrayList<String> tokenize(String str) {
-        ArrayList<String> tokens = new ArrayList<String>();
-        Pattern pattern = Pattern.compile("[\\s ,]*(~@|[\\[\\]{}()'`~@]|\"(?:[\\\\].|[^\\\\\"])*\"?|;.*|[^\\s \\[\\]{}()'\"`~@,;]*)");
-        Matcher matcher = pattern.matcher(str);
-        while (matcher.find()) {
-            String token = matcher.group(1);
-            if (token != null &&
-                !token.equals("") &&
-                !(token.charAt(0) == ';')) {
-                tokens.add(token);
+        // The next significant character (skipping whitespace, commas
+        // and comments) without consuming it, or -1 at the end
+        public int peek() throws ParseError {
+            while (more()) {
+                final char c = buf[pos];
+                if (c == ';') {
+                    while (more() && buf[pos] != '\n' && buf[pos] != '\r') {
+                        pos++;
+                    }
+                } else if (c == ' ' || c == ',' || c == '\n' || c == '\t' ||
+                           c == '\r' || c == '\f' || c == '\u000b') {
+                    pos++;
+                } else {
+                    return c;
+                }
             }
+            return -1;
+        }
+    }
+
+    // Characters that end a symbol, keyword or number
+    static boolean delimiter(char c) {
+        switch (c) {
+            case ' ': case ',': case '\n': case '\t': case '\r': case '\f':
+            case '\u000b': case ';': case '"': case '\'': case '`':
+            case '~': case '@': case '(': case ')': case '[': case ']':
+            case '{': case '}':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean token_is(Reader rdr, int start, String s) {
+        if (rdr.pos - start != s.length()) { return false; }
+        for (int i=0; i<s.length(); i++) {
+            if (rdr.buf[start + i] != s.charAt(i)) { return false; }
         }
-        return tokens;
+        return true;
     }
 
     public static MalVal read_atom(Reader rdr)
             throws ParseError {
-        String token = rdr.next();
-        Pattern pattern = Pattern.compile("(^-?[0-9]+$)|(^-?[0-9][0-9.]*$)|(^nil$)|(^true$)|(^false$)|^\"((?:[\\\\].|[^\\\\\"])*)\"$|^\"(.*)$|:(.*)|(^[^\"]*$)");
-        Matcher matcher = pattern.matcher(token);
-        if (!matcher.find()) {
-            throw new ParseError("unrecognized token '" + token + "'");
-        }
-        if (matcher.group(1) != null) {
-            return new MalInteger(Integer.parseInt(matcher.group(1)));
-        } else if (matcher.group(3) != null) {
+        rdr.mark = rdr.pos;
+        while (rdr.more() && !delimiter(rdr.buf[rdr.pos])) {
+            rdr.pos++;
+        }
+        final char[] buf = rdr.buf;
+        final int start = rdr.mark, len = rdr.pos - start;
+        rdr.mark = -1;
+
+        final char c = buf[start];
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            // -?[0-9]+ is an integer, -?[0-9][0-9.]* is not supported
+            int i = c == '-' ? start + 1 : start;
+            if (i < rdr.pos && buf[i] >= '0' && buf[i] <= '9') {
+                long n = 0;
+                boolean digits = true, number = true;
+                for (; i < rdr.pos; i++) {
+                    final char d = buf[i];
+                    if (d >= '0' && d <= '9') {
+                        if (n <= Integer.MAX_VALUE) { n = n * 10 + (d - '0'); }
+                    } else {
+                        digits = false;
+                        number &= d == '.';
+                    }
+                }
+                if (digits) {
+                    if (c == '-') { n = -n; }
+                    if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) {
+                        // Out of range: NumberFormatException
+                        Integer.parseInt(new String(buf, start, len));
+                    }
+                    return new MalInteger((int)n);
+                } else if (number) {
+                    throw new ParseError("unrecognized '" +
+                                         new String(buf, start, len) + "'");
+                }
+            }
+        } else if (c == ':') {
+            final StringBuilder sb = new StringBuilder(len);
+            sb.append('\u029e').append(buf, start + 1, len - 1);
+            return new MalString(sb.toString());
+        } else if (token_is(rdr, start, "nil")) {
             return types.Nil;
-        } else if (matcher.group(4) != null) {
+        } else if (token_is(rdr, start, "true")) {
             return types.True;
-        } else if (matcher.group(5) != null) {
+        } else if (token_is(rdr, start, "false")) {
             return types.False;
-        } else if (matcher.group(6) != null) {
-            return new MalString(StringEscapeUtils.unescapeJava(matcher.group(6)));
-        } else if (matcher.group(7) != null) {
-            throw new ParseError("expected '\"', got EOF");
-        } else if (matcher.group(8) != null) {
-            return new MalString("\u029e" + matcher.group(8));
-        } else if (matcher.group(9) != null) {
-            return new MalSymbol(matcher.group(9));
-        } else {
-            throw new ParseError("unrecognized '" + matcher.group(0) + "'");
         }
+        rdr.symbols++;
+        return new MalSymbol(new String(buf, start, len));
+    }
+
+    public static MalVal read_string(Reader rdr)
+            throws ParseError {
+        rdr.mark = ++rdr.pos;
+        // Without escapes the value is the characters up to the quote
+        while (rdr.more() && rdr.buf[rdr.pos] != '"' && rdr.buf[rdr.pos] != '\\') {
+            rdr.pos++;
+        }
+        final int start = rdr.mark;
+        rdr.mark = -1;
+        if (rdr.pos < rdr.end && rdr.buf[rdr.pos] == '"') {
+            return new MalString(new String(rdr.buf, start, rdr.pos++ - start));
+        }
+        final StringBuilder sb = new StringBuilder(rdr.pos - start + 16);
+        sb.append(rdr.buf, start, rdr.pos - start);
+        while (rdr.more()) {
+            char c = rdr.buf[rdr.pos++];
+            if (c == '"') {
+                return new MalString(sb.toString());
+            } else if (c != '\\') {
+                sb.append(c);
+            } else if (rdr.more()) {
+                c = rdr.buf[rdr.pos++];
+                switch (c) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case '"': case '\\': case '\'': sb.append(c); break;
+                    case 'u': read_unicode(rdr, sb); break;
+                    default:
+                        if (c >= '0' && c <= '7') {
+                            read_octal(rdr, c, sb);
+                        } else {
+                            sb.append('\\').append(c);
+                        }
+                }
+            }
+        }
+        throw new ParseError("expected '\"', got EOF");
+    }
+
+    // Unicode escape, as the printer writes non-ASCII characters
+    static void read_unicode(Reader rdr, StringBuilder sb)
+            throws ParseError {
+        while (rdr.more() && rdr.buf[rdr.pos] == 'u') {
+            rdr.pos++;
+        }
+        int code = 0;
+        for (int i=0; i<4; i++) {
+            if (!rdr.more()) {
+                throw new ParseError("expected '\"', got EOF");
+            }
+            final int d = Character.digit(rdr.buf[rdr.pos++], 16);
+            if (d < 0) {
+                throw new ParseError("invalid unicode escape in string");
+            }
+            code = code * 16 + d;
+        }
+        sb.append((char)code);
+    }
+
+    // Octal escape, up to \377
+    static void read_octal(Reader rdr, char first, StringBuilder sb)
+            throws ParseError {
+        int code = first - '0';
+        final int max = first <= '3' ? 2 : 1;
+        for (int i=0; i<max && rdr.more() &&
+                      rdr.buf[rdr.pos] >= '0' && rdr.buf[rdr.pos] <= '7'; i++) {
+            code = code * 8 + (rdr.buf[rdr.pos++] - '0');
+        }
+        sb.append((char)code);
     }
 
     public static MalVal read_list(Reader rdr, MalList lst, char start, char end)
             throws MalContinue, ParseError {
-        String token = rdr.next();
-        if (token.charAt(0) != start) {
+        if (rdr.peek() != start) {
             throw new ParseError("expected '" + start + "'");
         }
+        rdr.pos++;
 
-        while ((token = rdr.peek()) != null && token.charAt(0) != end) {
+        int c;
+        while ((c = rdr.peek()) != -1 && c != end) {
             lst.conj_BANG(read_form(rdr));
         }
 
-        if (token == null) {
+        if (c == -1) {
             throw new ParseError("expected '" + end + "', got EOF");
         }
-        rdr.next();
+        rdr.pos++;
 
         return lst;
     }
@@ -104,33 +304,34 @@ public class reader {
 
     public static MalVal read_form(Reader rdr)
             throws MalContinue, ParseError {
-        String token = rdr.peek();
-        if (token == null) { throw new MalContinue(); }
+        final int c = rdr.peek();
+        if (c == -1) { throw new MalContinue(); }
         MalVal form;
 
-        switch (token.charAt(0)) {
-            case '\'': rdr.next();
+        final int symbols = rdr.symbols;
+        switch (c) {
+            case '\'': rdr.pos++; rdr.symbols++;
                        return new MalList(new MalSymbol("quote"),
                                           read_form(rdr));
-            case '`': rdr.next();
+            case '`': rdr.pos++; rdr.symbols++;
                       return new MalList(new MalSymbol("quasiquote"),
                                          read_form(rdr));
             case '~':
-                if (token.equals("~")) {
-                    rdr.next();
-                    return new MalList(new MalSymbol("unquote"),
+                rdr.pos++; rdr.symbols++;
+                if (rdr.more() && rdr.buf[rdr.pos] == '@') {
+                    rdr.pos++;
+                    return new MalList(new MalSymbol("splice-unquote"),
                                        read_form(rdr));
                 } else {
-                    rdr.next();
-                    return new MalList(new MalSymbol("splice-unquote"),
+                    return new MalList(new MalSymbol("unquote"),
                                        read_form(rdr));
                 }
-            case '^': rdr.next();
+            case '^': rdr.pos++; rdr.symbols++;
                       MalVal meta = read_form(rdr);
                       return new MalList(new MalSymbol("with-meta"),
                                          read_form(rdr),
                                          meta);
-            case '@': rdr.next();
+            case '@': rdr.pos++; rdr.symbols++;
                       return new MalList(new MalSymbol("deref"),
                                          read_form(rdr));
             case '(': form = read_list(rdr, new MalList(), '(' , ')'); break;
@@ -139,13 +340,359 @@ public class reader {
             case ']': throw new ParseError("unexpected ']'");
             case '{': form = read_hash_map(rdr); break;
             case '}': throw new ParseError("unexpected '}'");
+            case '"': form = read_string(rdr); break;
             default:  form = read_atom(rdr);
         }
+        if (rdr.interner != null && rdr.symbols == symbols) {
+            form = rdr.interner.intern(form);
+        }
         return form;
     }
 
     public static MalVal read_str(String str)
             throws MalContinue, ParseError {
-        return read_form(new Reader(tokenize(str)));
+        return read_form(new Reader(str));
+    }
+
+    public static MalVal read_str(String str, Interner interner)
+            throws MalContinue, ParseError {
+        final Reader rdr = new Reader(str);
+        rdr.interner = interner;
+        return read_form(rdr);
+    }
+
+    //
+    // Streaming: top-level forms one at a time
+    //
+
+    // A Reader over a file, decoded as UTF-8 as it is read
+    public static Reader open(String path) throws MalThrowable {
+        try {
+            return new Reader(Channels.newReader(
+                FileChannel.open(Paths.get(path), StandardOpenOption.READ),
+                "UTF-8"));
+        } catch (NoSuchFileException e) {
+            throw new MalError(path + " (No such file or directory)");
+        } catch (IOException e) {
+            throw new MalError(e.getMessage());
+        }
+    }
+
+    // The next top-level form, or null (closing the input) at the end
+    public static MalVal read_next(Reader rdr)
+            throws MalContinue, ParseError {
+        if (rdr.peek() == -1) {
+            rdr.close();
+            return null;
+        }
+        return read_form(rdr);
+    }
+
+    //
+    // Parallel: a file of many top-level forms is cut into pieces at
+    // form boundaries, and the pieces are read on a fork-join pool
+    //
+
+    // Finds top-level form boundaries in UTF-8 source. Delimiters are
+    // ASCII, and bytes of multi-byte characters never are, so the bytes
+    // can be scanned without decoding them.
+    static final class Splitter {
+        int depth = 0;
+        // Forms still needed to complete the current top-level form
+        // (a quote needs one, ^ needs two)
+        int open = 0;
+        boolean string = false, escape = false, comment = false, atom = false;
+
+        // Whether a top-level form ends before b
+        boolean boundary() {
+            return depth == 0 && open == 0 && !string && !comment && !atom;
+        }
+
+        void form_start() {
+            if (depth == 0 && open == 0) { open = 1; }
+        }
+        void form_end() {
+            if (depth == 0 && open > 0) { open--; }
+        }
+
+        void scan(byte b) {
+            if (comment) {
+                comment = b != '\n' && b != '\r';
+                return;
+            }
+            if (string) {
+                if (escape) {
+                    escape = false;
+                } else if (b == '\\') {
+                    escape = true;
+                } else if (b == '"') {
+                    string = false;
+                    form_end();
+                }
+                return;
+            }
+            if (atom) {
+                if (b >= 0 && delimiter((char)b)) {
+                    atom = false;
+                    form_end();
+                } else {
+                    return;
+                }
+            }
+            switch (b) {
+                case ' ': case ',': case '\n': case '\t': case '\r':
+                case '\f': case 0x0b:
+                    break;
+                case ';': comment = true; break;
+                case '"': form_start(); string = true; break;
+                case '(': case '[': case '{': form_start(); depth++; break;
+                case ')': case ']': case '}':
+                    if (depth > 0) { depth--; }
+                    form_end();
+                    break;
+                case '\'': case '`': case '~': case '@': form_start(); break;
+                case '^': form_start(); if (depth == 0) { open++; } break;
+                default: form_start(); atom = true;
+            }
+        }
+    }
+
+    static final long MAP_WINDOW = 1 << 30;
+    static final long MIN_PIECE = 1 << 20;
+
+    // Offsets cutting the size bytes of ch into pieces of at least
+    // piece bytes, each ending after a complete top-level form
+    static long[] split(FileChannel ch, long size, long piece)
+            throws IOException {
+        final List<Long> cuts = new ArrayList<Long>();
+        cuts.add(0L);
+        final Splitter sp = new Splitter();
+        long next = piece;
+        for (long base = 0; base < size; base += MAP_WINDOW) {
+            final MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY,
+                base, Math.min(MAP_WINDOW, size - base));
+            final int len = bb.limit();
+            for (int i=0; i<len; i++) {
+                if (base + i >= next && sp.boundary()) {
+                    cuts.add(base + i);
+                    next = base + i + piece;
+                }
+                sp.scan(bb.get(i));
+            }
+        }
+        cuts.add(size);
+        final long[] res = new long[cuts.size()];
+        for (int i=0; i<res.length; i++) {
+            res[i] = cuts.get(i);
+        }
+        return res;
+    }
+
+    static List<MalVal> read_piece(FileChannel ch, long start, long end,
+                                   Interner interner)
+            throws IOException, MalThrowable {
+        final CharBuffer cb = StandardCharsets.UTF_8.decode(
+            ch.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        final Reader rdr = new Reader(cb.array(), cb.limit());
+        rdr.interner = interner;
+        final List<MalVal> forms = new ArrayList<MalVal>();
+        MalVal form;
+        while ((form = read_next(rdr)) != null) {
+            forms.add(form);
+        }
+        return forms;
+    }
+
+    static ForkJoinPool pool = null;
+
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    // All the forms of a file, in order
+    public static MalVector read_all_parallel(String path,
+                                              final Interner interner)
+            throws MalThrowable {
+        try (final FileChannel ch = FileChannel.open(Paths.get(path),
+                                                     StandardOpenOption.READ)) {
+            final long size = ch.size();
+            final long piece = Math.max(MIN_PIECE,
+                size / (4 * pool().getParallelism()) + 1);
+            final long[] cuts = split(ch, size, piece);
+            final List<Callable<List<MalVal>>> tasks =
+                new ArrayList<Callable<List<MalVal>>>();
+            for (int i=0; i+1<cuts.length; i++) {
+                final long start = cuts[i], end = cuts[i+1];
+                tasks.add(new Callable<List<MalVal>>() {
+                    public List<MalVal> call() throws Exception {
+                        return read_piece(ch, start, end, interner);
+                    }
+                });
+            }
+            final List<MalVal> forms = new ArrayList<MalVal>();
+            for (Future<List<MalVal>> f : pool().invokeAll(tasks)) {
+                forms.addAll(f.get());
+            }
+            return new MalVector(forms);
+        } catch (NoSuchFileException e) {
+            throw new MalError(path + " (No such file or directory)");
+        } catch (IOException e) {
+            throw new MalError(e.getMessage());
+        } catch (ExecutionException e) {
+            // The pool wraps the exceptions of a Callable (and copies
+            // them when they were thrown on another thread)
+            Throwable cause = e.getCause();
+            while (cause instanceof RuntimeException &&
+                   cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof MalThrowable) {
+                throw (MalThrowable)cause;
+            }
+            throw new MalError(cause.getMessage());
+        } catch (InterruptedException e) {
+            throw new MalError("read-all-parallel: interrupted");
+        }
+    }
+
+    //
+    // Interning (hash-consing) of data. A reader with an interner returns
+    // the same object for every occurrence of an equal string, keyword or
+    // number, and of a list, vector or map made only of such values (a
+    // form with symbols is code, whose lists the evaluator annotates, so
+    // it is never shared). Children are interned before their parent, so
+    // composite forms are compared by the identity of their elements.
+    //
+    // The table is bounded and holds its values weakly: it only keeps
+    // alive what the program does.
+    //
+    public static class Interner {
+        static final class Shape {
+            final boolean vector;
+            final Object[] items;
+            final int hash;
+
+            Shape(boolean vector, Object[] items) {
+                this.vector = vector;
+                this.items = items;
+                int h = vector ? 1 : 0;
+                for (Object item : items) {
+                    h = 31 * h + System.identityHashCode(item);
+                }
+                hash = h;
+            }
+            @Override public int hashCode() { return hash; }
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof Shape)) { return false; }
+                final Shape other = (Shape)o;
+                if (other.vector != vector || other.items.length != items.length) {
+                    return false;
+                }
+                for (int i=0; i<items.length; i++) {
+                    if (other.items[i] != items[i]) { return false; }
+                }
+                return true;
+            }
+        }
+
+        static final class MapShape {
+            final Map<String,MalVal> map;
+            final int hash;
+
+            MapShape(Map<String,MalVal> map) {
+                this.map = map;
+                int h = 0;
+                for (Map.Entry<String,MalVal> e : map.entrySet()) {
+                    h += e.getKey().hashCode() ^
+                         System.identityHashCode(e.getValue());
+                }
+                hash = h;
+            }
+            @Override public int hashCode() { return hash; }
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof MapShape)) { return false; }
+                final Map<String,MalVal> other = ((MapShape)o).map;
+                if (other.size() != map.size()) { return false; }
+                for (Map.Entry<String,MalVal> e : map.entrySet()) {
+                    if (other.get(e.getKey()) != e.getValue()) { return false; }
+                }
+                return true;
+            }
+        }
+
+        final ConcurrentMap<Object,MalVal> table;
+        final AtomicLong hits = new AtomicLong(), saved = new AtomicLong();
+
+        public Interner(long max_entries) {
+            table = CacheBuilder.newBuilder()
+                .maximumSize(max_entries)
+                .weakValues()
+                .<Object,MalVal>build()
+                .asMap();
+        }
+
+        // Estimated bytes of the object graph a value adds over its
+        // (already interned) children, with compressed references
+        static long align(long n) { return (n + 7) & ~7L; }
+
+        static long shallow_size(MalVal v) {
+            if (v instanceof MalString) {
+                return 24 + 24 + align(16 + ((MalString)v).getValue().length());
+            } else if (v instanceof MalInteger) {
+                return 24 + 16;
+            } else if (v instanceof MalList) {
+                return 32 + 24 + align(16 + 4 * ((MalList)v).size());
+            } else if (v instanceof MalHashMap) {
+                final int n = ((MalHashMap)v).size();
+                return 24 + 48 + align(16 + 4 * Integer.highestOneBit(n * 2 + 1)) +
+                       32 * n;
+            }
+            return 0;
+        }
+
+        public MalVal intern(MalVal v) {
+            final Object key;
+            if (v instanceof MalString) {
+                key = ((MalString)v).getValue();
+            } else if (v instanceof MalInteger) {
+                key = ((MalInteger)v).getValue();
+            } else if (v instanceof MalList) {
+                key = new Shape(v instanceof MalVector,
+                                ((MalList)v).getList().toArray());
+            } else if (v instanceof MalHashMap) {
+                key = new MapShape(((MalHashMap)v).value);
+            } else {
+                return v;
+            }
+            final MalVal old = table.putIfAbsent(key, v);
+            if (old == null) {
+                return v;
+            }
+            hits.incrementAndGet();
+            saved.addAndGet(shallow_size(v));
+            return old;
+        }
+
+        // {:entries n :hits n :bytes-saved n}
+        public MalHashMap stats() {
+            return new MalHashMap(new MalList(
+                new MalString("\u029eentries"), new MalInteger(table.size()),
+                new MalString("\u029ehits"), new MalInteger((int)hits.get()),
+                new MalString("\u029ebytes-saved"),
+                new MalInteger((int)Math.min(Integer.MAX_VALUE, saved.get()))));
+        }
+    }
+
+    static Interner interner = null;
+
+    // The interner shared by every read with :intern
+    public static synchronized Interner interner() {
+        if (interner == null) {
+            interner = new Interner(1 << 20);
+        }
+        return interner;
     }
 }
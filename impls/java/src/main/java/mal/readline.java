@@ -5,6 +5,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.Writer;
 
 import java.io.File;
 import com.google.common.io.Files;
@@ -16,11 +17,27 @@ import com.sun.jna.Native;
 import com.sun.jna.Platform;
 
 class readline {
-    public enum Mode { JNA, JAVA }
+    // BATCH: like JAVA, with no prompts, for reading stdin in a pipeline
+    public enum Mode { JNA, JAVA, BATCH }
     static Mode mode = Mode.JNA;
 
     static String HISTORY_FILE = null;
     static Boolean historyLoaded = false;
+    // Kept open, so a line costs one write, and closed at exit
+    static Writer history = null;
+    static String historyName = null;
+
+    // Standard input through one large buffer, shared by the JAVA and
+    // BATCH modes, (*in*) and read-line
+    static BufferedReader stdin = null;
+
+    public static synchronized BufferedReader stdin() {
+        if (stdin == null) {
+            stdin = new BufferedReader(new InputStreamReader(System.in),
+                                       1 << 16);
+        }
+        return stdin;
+    }
 
     static {
         HISTORY_FILE = System.getProperty("user.home") + "/.mal-history";
@@ -52,22 +69,48 @@ class readline {
             for (String line : lines) {
                 RLLibrary.INSTANCE.add_history(line);
             }
+            historyLoaded = true;
         } catch (IOException e) {
             // ignore
         }
     }
 
-    public static void appendHistory(String filename, String line) {
+    public static synchronized void appendHistory(String filename,
+                                                  String line) {
         try {
-            BufferedWriter w;
-            w = new BufferedWriter(new FileWriter(filename, true));
-            w.append(line + "\n");
-            w.close();
+            if (history == null || !filename.equals(historyName)) {
+                closeHistory();
+                history = new BufferedWriter(new FileWriter(filename, true));
+                historyName = filename;
+            }
+            history.append(line).append('\n');
+            history.flush();
         } catch (IOException e) {
             // ignore
         }
     }
 
+    public static synchronized void closeHistory() {
+        if (history == null) {
+            return;
+        }
+        try {
+            history.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        history = null;
+        historyName = null;
+    }
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                closeHistory();
+            }
+        });
+    }
+
     public static String jna_readline(String prompt)
             throws EOFException, IOException {
         if (!historyLoaded) {
@@ -85,9 +128,12 @@ class readline {
     // Just java readline (no history, or line editing)
     public static String java_readline(String prompt)
             throws EOFException, IOException {
-        System.out.print(prompt);
-        BufferedReader buffer=new BufferedReader(new InputStreamReader(System.in));
-        String line=buffer.readLine();
+        if (mode != Mode.BATCH) {
+            System.out.print(prompt);
+            // Output printed so far comes before the prompt
+            System.out.flush();
+        }
+        String line = stdin().readLine();
         if (line == null) {
             throw new EOFException();
         }
@@ -97,6 +143,8 @@ class readline {
     public static String readline(String prompt)
             throws EOFException, IOException {
         if (mode == Mode.JNA) {
+            // Output printed so far comes before the prompt
+            System.out.flush();
             return jna_readline(prompt);
         } else {
             return java_readline(prompt);
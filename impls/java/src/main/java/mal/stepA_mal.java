@@ -2,15 +2,19 @@ package mal;
 
 import java.io.IOException;
 
-import java.io.StringWriter;
-import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
 import mal.types.*;
 import mal.readline;
 import mal.reader;
 import mal.printer;
 import mal.env.Env;
+import mal.env.Namespace;
+import mal.env.Scope;
+import mal.env.Var;
 import mal.core;
 
 public class stepA_mal {
@@ -52,19 +56,556 @@ public class stepA_mal {
         return res;
     }
 
+    static MalList eval_args(MalList ast, Env env) throws MalThrowable {
+        final MalList args = new MalList();
+        for (int i=1; i<ast.size(); i++)
+            args.conj_BANG(EVAL(ast.nth(i), env));
+        return args;
+    }
+
+    // The expansion of a call of macro f, made when the call is first
+    // evaluated and cached on the call form: later evaluations reuse it
+    // while the symbol still names the same macro, and a call whose
+    // symbol has since been bound to another macro (a redefinition, or
+    // a file loaded again from the loader's cache) is expanded again.
+    // So a macro runs once per call form and must be pure: its
+    // expansion may depend only on its arguments.
+    static final class Expansion {
+        final MalFunction macro;
+        final MalVal form;
+
+        Expansion(MalFunction macro, MalVal form) {
+            this.macro = macro;
+            this.form = form;
+        }
+    }
+
+    static MalVal expand(MalList ast, MalFunction f) throws MalThrowable {
+        if (ast.analysis instanceof Expansion &&
+            ((Expansion)ast.analysis).macro == f) {
+            return ((Expansion)ast.analysis).form;
+        }
+        final MalVal form = f.apply(ast.rest());
+        ast.analysis = new Expansion(f, form);
+        return form;
+    }
+
+    // The cached expansion of a macro call for analysis, which never
+    // runs a macro itself: null if the call hasn't been evaluated with f
+    // yet, counted in unexpanded. An analysis that met one treats it
+    // conservatively and is redone (up to REANALYZE times) the next time
+    // its form is evaluated, by when the call may have been expanded.
+    static int unexpanded = 0;
+    static final int REANALYZE = 8;
+
+    static MalVal expansion(MalList ast, MalFunction f) {
+        if (ast.analysis instanceof Expansion &&
+            ((Expansion)ast.analysis).macro == f) {
+            return ((Expansion)ast.analysis).form;
+        }
+        unexpanded++;
+        return null;
+    }
+
+    // loop*/recur analysis: every recur in a loop* body must be in tail
+    // position and pass one value per loop binding. Macro calls are
+    // checked through their expansions (see expansion) so that recur
+    // inside cond and the like is accepted; one not expanded yet is
+    // assumed to create closures, and the recurs in it are checked by
+    // the evaluator. The result is cached on the loop* form so the check
+    // runs once per form (or until its macro calls are expanded).
+    static class LoopForm {
+        MalSymbol[] syms;
+        Scope scope;
+        MalVal body;
+        // true if the body creates closures, which may capture the loop
+        // frame; such loops get a fresh frame for every iteration
+        Boolean captures;
+        // analyses done, and whether the last met an unexpanded macro
+        int tries = 0;
+        Boolean partial = false;
+    }
+
+    static LoopForm analyze_loop(MalList ast, Env env) throws MalThrowable {
+        LoopForm lf = (LoopForm)ast.analysis;
+        if (lf != null && (!lf.partial || lf.tries >= REANALYZE)) {
+            return lf;
+        }
+        if (lf == null) {
+            if (ast.size() != 3 || !(ast.nth(1) instanceof MalList)) {
+                throw new MalException("loop*: expected bindings and a body");
+            }
+            final MalList bindings = (MalList)ast.nth(1);
+            if (bindings.size() % 2 != 0) {
+                throw new MalException("loop*: odd number of binding forms");
+            }
+            lf = new LoopForm();
+            lf.syms = new MalSymbol[bindings.size() / 2];
+            for (int i=0; i<lf.syms.length; i++) {
+                lf.syms[i] = (MalSymbol)bindings.nth(2*i);
+            }
+            lf.scope = Scope.bindings(bindings);
+            lf.scope.defs = has_defs(ast);
+            lf.body = ast.nth(2);
+        }
+        Set<String> locals = new HashSet<String>();
+        for (MalSymbol sym : lf.syms) {
+            locals.add(sym.getName());
+        }
+        unexpanded = 0;
+        lf.captures = check_recur(lf.body, true, lf.syms.length, locals, env);
+        lf.partial = unexpanded > 0;
+        lf.tries++;
+        ast.analysis = lf;
+        return lf;
+    }
+
+    // recur's argument count, for a recur check_recur hasn't seen
+    static void check_recur_args(MalList ast, LoopForm lf) throws MalThrowable {
+        if (ast.size() - 1 != lf.syms.length) {
+            throw new MalException("recur: expected " + lf.syms.length +
+                                   " arguments, got " + (ast.size() - 1));
+        }
+    }
+
+    // Returns true if ast contains a fn* form
+    static Boolean check_recur(MalVal ast, Boolean tail, int arity,
+                               Set<String> locals, Env env) throws MalThrowable {
+        Boolean fn = false;
+        if (ast instanceof MalHashMap) {
+            for (Object v : ((MalHashMap)ast).value.values()) {
+                fn |= check_recur((MalVal)v, false, arity, locals, env);
+            }
+            return fn;
+        } else if (!(ast instanceof MalList)) {
+            return false;
+        }
+        final MalList lst = (MalList)ast;
+        if (!ast.list_Q() || lst.size() == 0 ||
+            !(lst.nth(0) instanceof MalSymbol)) {
+            for (int i=0; i<lst.size(); i++) {
+                fn |= check_recur(lst.nth(i), false, arity, locals, env);
+            }
+            return fn;
+        }
+        final String a0sym = ((MalSymbol)lst.nth(0)).getName();
+        Set<String> inner;
+        switch (a0sym) {
+        case "recur":
+            if (!tail || arity < 0) {
+                throw new MalException("recur: can only be used in tail position of loop*");
+            }
+            if (lst.size() - 1 != arity) {
+                throw new MalException("recur: expected " + arity +
+                                       " arguments, got " + (lst.size() - 1));
+            }
+            for (int i=1; i<lst.size(); i++) {
+                fn |= check_recur(lst.nth(i), false, arity, locals, env);
+            }
+            return fn;
+        case "quote":
+            return false;
+        case "quasiquote":
+            return check_recur_quasi(lst.nth(1), arity, locals, env);
+        case "if":
+            fn |= check_recur(lst.nth(1), false, arity, locals, env);
+            for (int i=2; i<lst.size(); i++) {
+                fn |= check_recur(lst.nth(i), tail, arity, locals, env);
+            }
+            return fn;
+        case "do":
+            for (int i=1; i<lst.size(); i++) {
+                fn |= check_recur(lst.nth(i), tail && i == lst.size()-1,
+                                  arity, locals, env);
+            }
+            return fn;
+        case "let*":
+        case "loop*":
+            inner = new HashSet<String>(locals);
+            final MalList bindings = (MalList)lst.nth(1);
+            for (int i=0; i+1<bindings.size(); i+=2) {
+                fn |= check_recur(bindings.nth(i+1), false, arity, inner, env);
+                inner.add(((MalSymbol)bindings.nth(i)).getName());
+            }
+            // recur in a nested loop* body targets that loop
+            if (a0sym.equals("let*")) {
+                fn |= check_recur(lst.nth(2), tail, arity, inner, env);
+            } else {
+                fn |= check_recur(lst.nth(2), true, bindings.size() / 2,
+                                  inner, env);
+            }
+            return fn;
+        case "fn*":
+            inner = new HashSet<String>(locals);
+            for (Object p : ((MalList)lst.nth(1)).value) {
+                inner.add(((MalSymbol)p).getName());
+            }
+            check_recur(lst.nth(2), false, -1, inner, env);
+            return true;
+        default:
+            if (!locals.contains(a0sym)) {
+                final MalVal f = env.get(a0sym);
+                if (f instanceof MalFunction && ((MalFunction)f).isMacro()) {
+                    final MalVal expanded = expansion(lst, (MalFunction)f);
+                    return expanded == null ||
+                           check_recur(expanded, tail, arity, locals, env);
+                }
+            }
+            for (int i=1; i<lst.size(); i++) {
+                fn |= check_recur(lst.nth(i), false, arity, locals, env);
+            }
+            return fn;
+        }
+    }
+
+    // check_recur for a quasiquote template: only the forms it unquotes
+    // are evaluated, none in tail position
+    static Boolean check_recur_quasi(MalVal ast, int arity,
+                                     Set<String> locals, Env env) throws MalThrowable {
+        Boolean fn = false;
+        if (ast instanceof MalHashMap) {
+            for (Object v : ((MalHashMap)ast).value.values()) {
+                fn |= check_recur_quasi((MalVal)v, arity, locals, env);
+            }
+            return fn;
+        } else if (!(ast instanceof MalList)) {
+            return false;
+        }
+        final MalList lst = (MalList)ast;
+        if (lst.size() == 2 && lst.nth(0) instanceof MalSymbol) {
+            final String a0sym = ((MalSymbol)lst.nth(0)).getName();
+            if (a0sym.equals("unquote") || a0sym.equals("splice-unquote")) {
+                return check_recur(lst.nth(1), false, arity, locals, env);
+            }
+        }
+        for (int i=0; i<lst.size(); i++) {
+            fn |= check_recur_quasi(lst.nth(i), arity, locals, env);
+        }
+        return fn;
+    }
+
+    // DEBUG-EVAL is looked up for every form evaluated. Unless some
+    // binding form or local def! has used the name, it can only be the
+    // namespace's definition, so that cell is read directly.
+    static Env debug_root = null;
+    static Var debug_var = null;
+    static int debug_checked = -1;
+    static Boolean debug_local = true;
+
+    static Boolean debug_local() {
+        if (debug_checked != mal.env.localsVersion()) {
+            debug_local = mal.env.isLocal("DEBUG-EVAL");
+            debug_checked = mal.env.localsVersion();
+        }
+        return debug_local;
+    }
+
+    static void debug_eval(MalVal ast, Env env) {
+        MalVal dbgeval;
+        if (debug_local()) {
+            dbgeval = env.get("DEBUG-EVAL");
+        } else {
+            if (env.root() != debug_root) {
+                debug_var = env.root().var("DEBUG-EVAL");
+                debug_root = env.root();
+            }
+            dbgeval = debug_var.get();
+        }
+        if (dbgeval != null && dbgeval != types.Nil && dbgeval != types.False)
+            System.out.println("EVAL: " + printer._pr_str(ast, true));
+    }
+
+    static MalVal eval_symbol(MalSymbol sym, Env env) throws MalThrowable {
+        final MalVal val = env.lookup(sym);
+        if (val == null)
+            throw new MalException("'" + sym.getName() + "' not found");
+        return val;
+    }
+
+    // Scope of the bindings of a let* form, cached on the form
+    static Scope let_scope(MalList ast) {
+        if (!(ast.analysis instanceof Scope)) {
+            final Scope scope = Scope.bindings((MalList)ast.nth(1));
+            scope.defs = has_defs(ast);
+            ast.analysis = scope;
+        }
+        return (Scope)ast.analysis;
+    }
+
+    // Whether evaluating ast may def! a name into the frame it runs in
+    // (see Scope.defs): any def!, defmacro! or eval in it, nested forms
+    // included
+    static Boolean has_defs(MalVal ast) {
+        if (ast instanceof MalSymbol) {
+            final String name = ((MalSymbol)ast).getName();
+            return name.equals("def!") || name.equals("defmacro!") ||
+                   name.equals("eval");
+        } else if (ast instanceof MalList) {
+            for (Object o : ((MalList)ast).getList()) {
+                if (has_defs((MalVal)o)) {
+                    return true;
+                }
+            }
+        } else if (ast instanceof MalHashMap) {
+            for (Object o : ((MalHashMap)ast).value.values()) {
+                if (has_defs((MalVal)o)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // fn* analysis: the names a function body may reference that it
+    // doesn't bind itself, including those of nested functions. Macro
+    // calls are read through their expansions (see expansion) to see
+    // the names they produce. If the body has a macro call not expanded
+    // yet, or calls something that isn't defined yet and so might
+    // become a macro, the result is null, and the form is analyzed
+    // again when it is next evaluated. Cached on the fn* form.
+    static class FnForm {
+        Scope free;
+        // free plus DEBUG-EVAL, for when that is bound locally
+        Scope free_debug;
+        // analyses done, and whether the last met an unexpanded macro
+        int tries = 0;
+        Boolean partial = false;
+    }
+
+    static FnForm analyze_fn(MalList ast, Env env) {
+        FnForm ff = ast.analysis instanceof FnForm ? (FnForm)ast.analysis : null;
+        if (ff != null && (!ff.partial || ff.tries >= REANALYZE)) {
+            return ff;
+        }
+        if (ff == null) {
+            ff = new FnForm();
+            Scope.params((MalList)ast.nth(1)).defs = has_defs(ast.nth(2));
+        }
+        Set<String> bound = new HashSet<String>();
+        for (Object p : ((MalList)ast.nth(1)).value) {
+            bound.add(((MalSymbol)p).getName());
+        }
+        Set<String> free = new HashSet<String>();
+        unexpanded = 0;
+        try {
+            if (free_vars(ast.nth(2), bound, free, env)) {
+                ff.free = new Scope(new ArrayList<String>(free));
+                ff.free_debug = null;
+            }
+        } catch (RuntimeException e) {
+            // malformed special form: leave it to EVAL to report
+        }
+        ff.partial = unexpanded > 0;
+        ff.tries++;
+        ast.analysis = ff;
+        return ff;
+    }
+
+    static Boolean free_vars(MalVal ast, Set<String> bound, Set<String> free,
+                             Env env) {
+        if (ast instanceof MalSymbol) {
+            if (!bound.contains(((MalSymbol)ast).getName())) {
+                free.add(((MalSymbol)ast).getName());
+            }
+            return true;
+        } else if (ast instanceof MalHashMap) {
+            for (Object v : ((MalHashMap)ast).value.values()) {
+                if (!free_vars((MalVal)v, bound, free, env)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (!(ast instanceof MalList)) {
+            return true;
+        }
+        final MalList lst = (MalList)ast;
+        if (!ast.list_Q() || lst.size() == 0 ||
+            !(lst.nth(0) instanceof MalSymbol)) {
+            return free_vars_from(lst, 0, bound, free, env);
+        }
+        final String a0sym = ((MalSymbol)lst.nth(0)).getName();
+        Set<String> inner;
+        switch (a0sym) {
+        case "quote":
+            return true;
+        case "quasiquote":
+            return free_vars(quasiquote(lst.nth(1)), bound, free, env);
+        case "def!":
+        case "defmacro!":
+            return free_vars(lst.nth(2), bound, free, env);
+        case "let*":
+        case "loop*":
+            // a binding can't see its own name or later ones until they
+            // have values, so those may refer to an outer binding
+            inner = new HashSet<String>(bound);
+            final MalList bindings = (MalList)lst.nth(1);
+            for (int i=0; i+1<bindings.size(); i+=2) {
+                if (!free_vars(bindings.nth(i+1), inner, free, env)) {
+                    return false;
+                }
+                inner.add(((MalSymbol)bindings.nth(i)).getName());
+            }
+            return free_vars(lst.nth(2), inner, free, env);
+        case "fn*":
+            inner = new HashSet<String>(bound);
+            for (Object p : ((MalList)lst.nth(1)).value) {
+                inner.add(((MalSymbol)p).getName());
+            }
+            return free_vars(lst.nth(2), inner, free, env);
+        case "try*":
+            if (!free_vars(lst.nth(1), bound, free, env)) {
+                return false;
+            }
+            final MalList catch_clause = catch_clause(lst);
+            if (catch_clause != null) {
+                inner = new HashSet<String>(bound);
+                inner.add(((MalSymbol)catch_clause.nth(1)).getName());
+                return free_vars(catch_clause.nth(2), inner, free, env);
+            }
+            return true;
+        case "do":
+        case "if":
+        case "recur":
+            return free_vars_from(lst, 1, bound, free, env);
+        case ".":
+            // the method name is not evaluated
+            return free_vars_from(lst.slice(0, Math.min(2, lst.size())), 1,
+                                  bound, free, env) &&
+                   free_vars_from(lst, 3, bound, free, env);
+        case "new":
+            return free_vars_from(lst, 2, bound, free, env);
+        default:
+            if (!bound.contains(a0sym)) {
+                final MalVal f = env.get(a0sym);
+                if (f == null) {
+                    unexpanded++;
+                    return false;
+                }
+                if (f instanceof MalFunction && ((MalFunction)f).isMacro()) {
+                    final MalVal expanded = expansion(lst, (MalFunction)f);
+                    return expanded != null &&
+                           free_vars(expanded, bound, free, env);
+                }
+            }
+            return free_vars_from(lst, 0, bound, free, env);
+        }
+    }
+
+    static Boolean free_vars_from(MalList lst, int start, Set<String> bound,
+                                  Set<String> free, Env env) {
+        for (int i=start; i<lst.size(); i++) {
+            if (!free_vars(lst.nth(i), bound, free, env)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A function closes over just the local bindings its body can
+    // reference (see Env.capture), or over all of env if that isn't
+    // known
+    static MalFunction make_fn(MalList ast, Env env) {
+        final MalList a1f = (MalList)ast.nth(1);
+        final MalVal a2f = ast.nth(2);
+        final FnForm ff = analyze_fn(ast, env);
+        if (ff.free != null && debug_local()) {
+            if (ff.free_debug == null) {
+                List<String> names = new ArrayList<String>();
+                for (int i=0; i<ff.free.size(); i++) {
+                    names.add(ff.free.name(i));
+                }
+                names.add("DEBUG-EVAL");
+                ff.free_debug = new Scope(names);
+            }
+            env = env.capture(ff.free_debug);
+        } else if (ff.free != null) {
+            env = env.capture(ff.free);
+        }
+        return new MalFunction (a2f, (mal.env.Env)env, a1f) {
+            public MalVal apply(MalList args) throws MalThrowable {
+                return EVAL(a2f, genEnv(args));
+            }
+            public MalVal apply0() throws MalThrowable {
+                return EVAL(a2f, genEnv0());
+            }
+            public MalVal apply1(MalVal a) throws MalThrowable {
+                return EVAL(a2f, genEnv1(a));
+            }
+            public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+                return EVAL(a2f, genEnv2(a, b));
+            }
+            public MalVal apply3(MalVal a, MalVal b, MalVal c)
+                    throws MalThrowable {
+                return EVAL(a2f, genEnv3(a, b, c));
+            }
+            public MalVal apply4(MalVal a, MalVal b, MalVal c, MalVal d)
+                    throws MalThrowable {
+                return EVAL(a2f, genEnv4(a, b, c, d));
+            }
+        };
+    }
+
+    // The (catch* sym body) clause of a try* form, or null
+    static MalList catch_clause(MalList ast) {
+        if (ast.size() > 2) {
+            final MalList a2 = (MalList)ast.nth(2);
+            if (((MalSymbol)a2.nth(0)).getName().equals("catch*")) {
+                return a2;
+            }
+        }
+        return null;
+    }
+
+    static Env catch_env(MalList catch_clause, Throwable t, Env env) {
+        t = MalUncheckedThrowable.unwrap(t);
+        MalVal exc;
+        if (t instanceof MalException) {
+            exc = ((MalException)t).getValue();
+        } else {
+            exc = new MalThrowableString(t);
+        }
+        if (!(catch_clause.analysis instanceof Scope)) {
+            final Scope scope = Scope.params(catch_clause.slice(1, 2));
+            scope.defs = has_defs(catch_clause.nth(2));
+            catch_clause.analysis = scope;
+        }
+        return new Env(env, (Scope)catch_clause.analysis).bind(0, exc);
+    }
+
+    static String frame_name(String sym) {
+        return sym.equals("__<*fn*>__") ? "<anonymous>" : sym;
+    }
+
+    // A do evaluated directly in a namespace evaluates each form in the
+    // namespace current at that point, so that in (do (ns foo) ...),
+    // as load-file evaluates a file, the rest is defined in foo
+    static Env top_level(Env env) {
+        if (env == env.root() && Namespace.current() != null) {
+            return Namespace.current().env;
+        }
+        return env;
+    }
+
     public static MalVal EVAL(MalVal orig_ast, Env env) throws MalThrowable {
+        if (heap_stack) {
+            return EVAL_HEAP(orig_ast, env);
+        }
+        // Names of the function applied by the current form and of the
+        // Mal function whose body is being evaluated (after a tail call),
+        // recorded on any exception unwinding through this frame.
+        String callee = null, fn_name = null;
+        // Innermost loop* whose body is being evaluated: recur rebinds
+        // its symbols in loop_env and jumps back to its body.
+        LoopForm loop = null;
+        Env loop_env = null;
+        MalVal[] recur_vals = null;
+        try {
         while (true) {
 
-        final MalVal dbgeval = env.get("DEBUG-EVAL");
-        if (dbgeval != null && dbgeval != types.Nil && dbgeval != types.False)
-            System.out.println("EVAL: " + printer._pr_str(orig_ast, true));
+        debug_eval(orig_ast, env);
 
         if (orig_ast instanceof MalSymbol) {
-            final String key = ((MalSymbol)orig_ast).getName();
-            final MalVal val = env.get(key);
-            if (val == null)
-                throw new MalException("'" + key + "' not found");
-            return val;
+            return eval_symbol((MalSymbol)orig_ast, env);
         } else if (orig_ast instanceof MalVector) {
             final MalList old_lst = (MalList)orig_ast;
             final MalVector new_lst = new MalVector();
@@ -101,7 +642,7 @@ public class stepA_mal {
             a2 = ast.nth(2);
             MalSymbol key;
             MalVal val;
-            Env let_env = new Env(env);
+            Env let_env = new Env(env, let_scope(ast));
             for(int i=0; i<((MalList)a1).size(); i+=2) {
                 key = (MalSymbol)((MalList)a1).nth(i);
                 val = ((MalList)a1).nth(i+1);
@@ -110,6 +651,38 @@ public class stepA_mal {
             orig_ast = a2;
             env = let_env;
             break;
+        case "loop*":
+            final LoopForm lf = analyze_loop(ast, env);
+            a1 = ast.nth(1);
+            Env new_loop_env = new Env(env, lf.scope);
+            for (int i=0; i<lf.syms.length; i++) {
+                new_loop_env.set(lf.syms[i],
+                                 EVAL(((MalList)a1).nth(2*i+1), new_loop_env));
+            }
+            loop = lf;
+            loop_env = new_loop_env;
+            recur_vals = new MalVal[lf.syms.length];
+            orig_ast = lf.body;
+            env = loop_env;
+            break;
+        case "recur":
+            if (loop_env == null) {
+                throw new MalException("recur: can only be used in tail position of loop*");
+            }
+            check_recur_args(ast, loop);
+            // evaluate all values before rebinding any loop symbol
+            for (int i=0; i<recur_vals.length; i++) {
+                recur_vals[i] = EVAL(ast.nth(i+1), env);
+            }
+            if (loop.captures) {
+                loop_env = new Env(loop_env.outer, loop.scope);
+            }
+            for (int i=0; i<recur_vals.length; i++) {
+                loop_env.bind(i, recur_vals[i]);
+            }
+            orig_ast = loop.body;
+            env = loop_env;
+            break;
         case "quote":
             return ast.nth(1);
         case "quasiquote":
@@ -127,29 +700,18 @@ public class stepA_mal {
             try {
                 return EVAL(ast.nth(1), env);
             } catch (Throwable t) {
-                if (ast.size() > 2) {
-                    MalVal exc;
-                    a2 = ast.nth(2);
-                    MalVal a20 = ((MalList)a2).nth(0);
-                    if (((MalSymbol)a20).getName().equals("catch*")) {
-                        if (t instanceof MalException) {
-                            exc = ((MalException)t).getValue();
-                        } else {
-                            StringWriter sw = new StringWriter();
-                            t.printStackTrace(new PrintWriter(sw));
-                            String tstr = sw.toString();
-                            exc = new MalString(t.getMessage() + ": " + tstr);
-                        }
-                        return EVAL(((MalList)a2).nth(2),
-                                    new Env(env, ((MalList)a2).slice(1,2),
-                                                 new MalList(exc)));
-                    }
+                final MalList catch_clause = catch_clause(ast);
+                if (catch_clause != null) {
+                    return EVAL(catch_clause.nth(2),
+                                catch_env(catch_clause, t, env));
                 }
                 throw t;
             }
         case "do":
-            for (int i=1; i<ast.size()-1; i++)
+            for (int i=1; i<ast.size()-1; i++) {
                 EVAL(ast.nth(i), env);
+                env = top_level(env);
+            }
             orig_ast = ast.nth(ast.size()-1);
             break;
         case "if":
@@ -168,32 +730,699 @@ public class stepA_mal {
             }
             break;
         case "fn*":
-            final MalList a1f = (MalList)ast.nth(1);
-            final MalVal a2f = ast.nth(2);
-            final Env cur_env = env;
-            return new MalFunction (a2f, (mal.env.Env)env, a1f) {
-                public MalVal apply(MalList args) throws MalThrowable {
-                    return EVAL(a2f, new Env(cur_env, a1f, args));
-                }
-            };
+            return make_fn(ast, env);
+        case ".":
+        case "new":
+            // Java interop: evaluated as a call (see interop.form)
+            orig_ast = interop.form(ast, env);
+            continue;
         default:
+            callee = a0sym;
             final MalFunction f = (MalFunction)EVAL(a0, env);
             if (f.isMacro()) {
-                orig_ast = f.apply(ast.rest());
+                orig_ast = expand(ast, f);
                 continue;
             }
-            final MalList args = new MalList();
-            for (int i=1; i<ast.size(); i++)
-                args.conj_BANG(EVAL(ast.nth(i), env));
+            // Calls with up to 4 arguments go through the fixed-arity
+            // entry points so no argument list is allocated
+            final int argc = ast.size() - 1;
             MalVal fnast = f.getAst();
             if (fnast != null) {
+                switch (argc) {
+                case 0: env = f.genEnv0(); break;
+                case 1: env = f.genEnv1(EVAL(ast.nth(1), env)); break;
+                case 2: env = f.genEnv2(EVAL(ast.nth(1), env),
+                                        EVAL(ast.nth(2), env)); break;
+                case 3: env = f.genEnv3(EVAL(ast.nth(1), env),
+                                        EVAL(ast.nth(2), env),
+                                        EVAL(ast.nth(3), env)); break;
+                case 4: env = f.genEnv4(EVAL(ast.nth(1), env),
+                                        EVAL(ast.nth(2), env),
+                                        EVAL(ast.nth(3), env),
+                                        EVAL(ast.nth(4), env)); break;
+                default: env = f.genEnv(eval_args(ast, env));
+                }
+                fn_name = a0sym;
+                loop_env = null;
                 orig_ast = fnast;
-                env = f.genEnv(args);
+            } else if (f instanceof MalTailFunction) {
+                // apply, map, swap!, eval: run the call they end with
+                // in this loop
+                res = ((MalTailFunction)f).applyTail(eval_args(ast, env));
+                while (res instanceof TailCall) {
+                    final TailCall tc = (TailCall)res;
+                    if (tc.kind == TailCall.EVAL) {
+                        orig_ast = tc.ast;
+                        env = tc.env;
+                        loop_env = null;
+                        break;
+                    } else if (tc.kind != TailCall.CALL) {
+                        // swap! and map still use the result
+                        res = tc.invoke();
+                    } else if (tc.f.getAst() != null) {
+                        orig_ast = tc.f.getAst();
+                        env = tc.f.genEnv(tc.args);
+                        loop_env = null;
+                        break;
+                    } else if (tc.f instanceof MalTailFunction) {
+                        res = ((MalTailFunction)tc.f).applyTail(tc.args);
+                    } else {
+                        res = tc.f.apply(tc.args);
+                    }
+                }
+                if (!(res instanceof TailCall)) {
+                    return res;
+                }
             } else {
-                return f.apply(args);
+                switch (argc) {
+                case 0: return f.apply0();
+                case 1: return f.apply1(EVAL(ast.nth(1), env));
+                case 2: return f.apply2(EVAL(ast.nth(1), env),
+                                        EVAL(ast.nth(2), env));
+                case 3: return f.apply3(EVAL(ast.nth(1), env),
+                                        EVAL(ast.nth(2), env),
+                                        EVAL(ast.nth(3), env));
+                case 4: return f.apply4(EVAL(ast.nth(1), env),
+                                        EVAL(ast.nth(2), env),
+                                        EVAL(ast.nth(3), env),
+                                        EVAL(ast.nth(4), env));
+                default: return f.apply(eval_args(ast, env));
+                }
+            }
+        }
+
+        }
+        } catch (MalThrowable | MalUncheckedThrowable e) {
+            // an error from a lazy list is rethrown as the MalThrowable
+            // it carries
+            final MalThrowable t = (MalThrowable)MalUncheckedThrowable.unwrap(e);
+            if (callee != null) {
+                t.addFrame(frame_name(callee));
+            }
+            if (fn_name != null && fn_name != callee) {
+                t.addFrame(frame_name(fn_name));
+            }
+            throw t;
+        }
+    }
+
+    //
+    // Evaluation with a heap-allocated control stack (--heap-stack)
+    //
+    // EVAL_HEAP evaluates the same language as EVAL, but subexpressions
+    // never recurse on the Java stack: pending work is kept in a linked
+    // stack of Frame continuations, so the depth of (non-tail) recursion
+    // is bounded only by memory. Symbols and constants are evaluated
+    // inline without pushing a frame. Builtins that call back into Mal
+    // (apply, map, swap!, eval) hand their call back as a TailCall, so
+    // recursion through them stays on the heap too. Macro expanders
+    // and other builtins that call Mal functions start a nested run.
+    //
+    static Boolean heap_stack = false;
+
+    static final int F_CALL = 0, F_IF = 1, F_DO = 2, F_LET = 3,
+                     F_LOOP = 4, F_RECUR = 5, F_DEF = 6, F_DEFMACRO = 7,
+                     F_TRY = 8, F_VECTOR = 9, F_HASH_MAP = 10,
+                     F_SWAP = 11, F_MAP = 12;
+
+    static final class Frame {
+        final int kind;
+        final MalList ast;     // form waiting for the value
+        final Env env;
+        final LoopForm loop;   // loop* context of the form (for recur)
+        final Env loop_env;
+        final Frame next;
+        int idx;               // index of the element being evaluated
+        MalVal[] vals;         // evaluated elements
+        String[] keys;         // hash-map literal keys
+        TailCall tail;         // swap! or map call being run
+        Frame(int kind, MalList ast, Env env, LoopForm loop, Env loop_env,
+              Frame next) {
+            this.kind = kind;
+            this.ast = ast;
+            this.env = env;
+            this.loop = loop;
+            this.loop_env = loop_env;
+            this.next = next;
+        }
+    }
+
+    // Value of a symbol or constant; null for forms that need a frame
+    static MalVal eval_simple(MalVal ast, Env env) throws MalThrowable {
+        if (ast instanceof MalList || ast instanceof MalHashMap) {
+            return null;
+        }
+        debug_eval(ast, env);
+        if (ast instanceof MalSymbol) {
+            return eval_symbol((MalSymbol)ast, env);
+        }
+        return ast;
+    }
+
+    static Boolean simple_args(MalList ast) {
+        for (int i=1; i<ast.size(); i++) {
+            final MalVal arg = ast.nth(i);
+            if (arg instanceof MalList || arg instanceof MalHashMap) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static MalVal apply_fixed(MalFunction f, MalVal[] vals)
+            throws MalThrowable {
+        switch (vals.length - 1) {
+        case 0: return f.apply0();
+        case 1: return f.apply1(vals[1]);
+        case 2: return f.apply2(vals[1], vals[2]);
+        case 3: return f.apply3(vals[1], vals[2], vals[3]);
+        case 4: return f.apply4(vals[1], vals[2], vals[3], vals[4]);
+        default:
+            MalList args = new MalList();
+            for (int i=1; i<vals.length; i++) {
+                args.conj_BANG(vals[i]);
+            }
+            return f.apply(args);
+        }
+    }
+
+    static Env gen_env(MalFunction f, MalVal[] vals) {
+        switch (vals.length - 1) {
+        case 0: return f.genEnv0();
+        case 1: return f.genEnv1(vals[1]);
+        case 2: return f.genEnv2(vals[1], vals[2]);
+        case 3: return f.genEnv3(vals[1], vals[2], vals[3]);
+        case 4: return f.genEnv4(vals[1], vals[2], vals[3], vals[4]);
+        default:
+            MalList args = new MalList();
+            for (int i=1; i<vals.length; i++) {
+                args.conj_BANG(vals[i]);
+            }
+            return f.genEnv(args);
+        }
+    }
+
+    public static MalVal EVAL_HEAP(MalVal ast, Env env) throws MalThrowable {
+        Frame stack = null;
+        // loop* context of the form in tail position (see EVAL)
+        LoopForm loop = null;
+        Env loop_env = null;
+        // null while ast is being evaluated, else the value to return
+        // to the frame on top of the stack
+        MalVal val = null;
+        // call handed back by apply, map, swap! or eval, run next
+        TailCall tail = null;
+        while (true) {
+        try {
+            if (tail != null) {
+                final TailCall tc = tail;
+                tail = null;
+                if (tc.kind == TailCall.EVAL) {
+                    ast = tc.ast;
+                    env = tc.env;
+                    loop = null;
+                    continue;
+                } else if (tc.kind == TailCall.MAP) {
+                    if (tc.args.size() == 0) {
+                        val = new MalList();
+                        continue;
+                    }
+                    stack = new Frame(F_MAP, null, env, null, null, stack);
+                    stack.tail = tc;
+                    stack.vals = new MalVal[tc.args.size()];
+                    stack.idx = 0;
+                    final MalFunction f = tc.f;
+                    final MalVal x = tc.args.nth(0);
+                    if (f.getAst() != null) {
+                        env = f.genEnv1(x);
+                        ast = f.getAst();
+                        loop = null;
+                    } else {
+                        val = f.apply1(x);
+                    }
+                    continue;
+                } else if (tc.kind == TailCall.SWAP) {
+                    stack = new Frame(F_SWAP, null, env, null, null, stack);
+                    stack.tail = tc;
+                }
+                final MalFunction f = tc.f;
+                if (f.getAst() != null) {
+                    env = f.genEnv(tc.args);
+                    ast = f.getAst();
+                    loop = null;
+                } else if (f instanceof MalTailFunction) {
+                    val = ((MalTailFunction)f).applyTail(tc.args);
+                    if (val instanceof TailCall) {
+                        tail = (TailCall)val;
+                        val = null;
+                    }
+                } else {
+                    val = f.apply(tc.args);
+                }
+                continue;
+            }
+            if (val == null) {
+                if (!(ast instanceof MalList || ast instanceof MalHashMap)) {
+                    val = eval_simple(ast, env);
+                    continue;
+                }
+                debug_eval(ast, env);
+                if (ast instanceof MalHashMap) {
+                    final Map<String, MalVal> hm = ((MalHashMap)ast).value;
+                    stack = new Frame(F_HASH_MAP, null, env, loop, loop_env,
+                                      stack);
+                    stack.keys = hm.keySet().toArray(new String[hm.size()]);
+                    stack.vals = new MalVal[hm.size()];
+                    for (int i=0; i<stack.keys.length; i++) {
+                        stack.vals[i] = hm.get(stack.keys[i]);
+                    }
+                    stack.idx = -1;
+                    val = types.Nil;
+                    continue;
+                }
+                final MalList lst = (MalList)ast;
+                if (ast instanceof MalVector) {
+                    stack = new Frame(F_VECTOR, lst, env, loop, loop_env,
+                                      stack);
+                    stack.vals = new MalVal[lst.size()];
+                    stack.idx = -1;
+                    val = types.Nil;
+                    continue;
+                }
+                if (lst.size() == 0) {
+                    val = lst;
+                    continue;
+                }
+                final MalVal a0 = lst.nth(0);
+                final String a0sym = a0 instanceof MalSymbol
+                                     ? ((MalSymbol)a0).getName()
+                                     : "__<*fn*>__";
+                switch (a0sym) {
+                case "def!":
+                    stack = new Frame(F_DEF, lst, env, null, null, stack);
+                    ast = lst.nth(2);
+                    loop = null;
+                    continue;
+                case "defmacro!":
+                    stack = new Frame(F_DEFMACRO, lst, env, null, null, stack);
+                    ast = lst.nth(2);
+                    loop = null;
+                    continue;
+                case "let*":
+                case "loop*":
+                    final MalList bindings = (MalList)lst.nth(1);
+                    final Boolean is_loop = a0sym.equals("loop*");
+                    final LoopForm lf = is_loop ? analyze_loop(lst, env) : null;
+                    final Env let_env = new Env(env, is_loop ? lf.scope
+                                                            : let_scope(lst));
+                    stack = new Frame(is_loop ? F_LOOP : F_LET, lst, let_env,
+                                      is_loop ? lf : loop,
+                                      is_loop ? let_env : loop_env, stack);
+                    stack.idx = -2;
+                    val = types.Nil;
+                    continue;
+                case "recur":
+                    if (loop == null) {
+                        throw new MalException("recur: can only be used in tail position of loop*");
+                    }
+                    check_recur_args(lst, loop);
+                    stack = new Frame(F_RECUR, lst, env, loop, loop_env, stack);
+                    stack.vals = new MalVal[lst.size()];
+                    stack.idx = 0;
+                    val = types.Nil;
+                    continue;
+                case "quote":
+                    val = lst.nth(1);
+                    continue;
+                case "quasiquote":
+                    ast = quasiquote(lst.nth(1));
+                    continue;
+                case "try*":
+                    stack = new Frame(F_TRY, lst, env, null, null, stack);
+                    ast = lst.nth(1);
+                    loop = null;
+                    continue;
+                case "do":
+                    stack = new Frame(F_DO, lst, env, loop, loop_env, stack);
+                    stack.idx = 0;
+                    val = types.Nil;
+                    continue;
+                case "if":
+                    stack = new Frame(F_IF, lst, env, loop, loop_env, stack);
+                    ast = lst.nth(1);
+                    loop = null;
+                    continue;
+                case "fn*":
+                    val = make_fn(lst, env);
+                    continue;
+                case ".":
+                case "new":
+                    ast = interop.form(lst, env);
+                    continue;
+                default:
+                    final MalVal f = eval_simple(a0, env);
+                    if (f != null && ((MalFunction)f).isMacro()) {
+                        ast = expand(lst, (MalFunction)f);
+                        continue;
+                    }
+                    if (f != null && lst.size() <= 5 && simple_args(lst) &&
+                        !(f instanceof MalTailFunction)) {
+                        // no subexpression needs a frame: apply directly
+                        final MalFunction fn = (MalFunction)f;
+                        final MalVal x1 = lst.size() > 1 ? eval_simple(lst.nth(1), env) : null;
+                        final MalVal x2 = lst.size() > 2 ? eval_simple(lst.nth(2), env) : null;
+                        final MalVal x3 = lst.size() > 3 ? eval_simple(lst.nth(3), env) : null;
+                        final MalVal x4 = lst.size() > 4 ? eval_simple(lst.nth(4), env) : null;
+                        if (fn.getAst() != null) {
+                            switch (lst.size() - 1) {
+                            case 0: env = fn.genEnv0(); break;
+                            case 1: env = fn.genEnv1(x1); break;
+                            case 2: env = fn.genEnv2(x1, x2); break;
+                            case 3: env = fn.genEnv3(x1, x2, x3); break;
+                            default: env = fn.genEnv4(x1, x2, x3, x4);
+                            }
+                            ast = fn.getAst();
+                            loop = null;
+                        } else {
+                            switch (lst.size() - 1) {
+                            case 0: val = fn.apply0(); break;
+                            case 1: val = fn.apply1(x1); break;
+                            case 2: val = fn.apply2(x1, x2); break;
+                            case 3: val = fn.apply3(x1, x2, x3); break;
+                            default: val = fn.apply4(x1, x2, x3, x4);
+                            }
+                        }
+                        continue;
+                    }
+                    stack = new Frame(F_CALL, lst, env, loop, loop_env, stack);
+                    stack.vals = new MalVal[lst.size()];
+                    if (f == null) {
+                        // evaluate the compound operator form first
+                        ast = a0;
+                        loop = null;
+                        continue;
+                    }
+                    stack.vals[0] = f;
+                    val = f;
+                    continue;
+                }
+            }
+
+            // Return val to the frame on top of the stack
+            if (stack == null) {
+                return val;
+            }
+            final Frame fr = stack;
+            stack = fr.next;
+            env = fr.env;
+            switch (fr.kind) {
+            case F_CALL:
+                fr.vals[fr.idx] = val;
+                if (fr.idx == 0 && ((MalFunction)val).isMacro()) {
+                    ast = expand(fr.ast, (MalFunction)val);
+                    loop = fr.loop;
+                    loop_env = fr.loop_env;
+                    val = null;
+                    continue;
+                }
+                // evaluate the remaining arguments
+                while (++fr.idx < fr.vals.length) {
+                    final MalVal arg = fr.ast.nth(fr.idx);
+                    if ((fr.vals[fr.idx] = eval_simple(arg, env)) == null) {
+                        break;
+                    }
+                }
+                if (fr.idx < fr.vals.length) {
+                    stack = fr;
+                    ast = fr.ast.nth(fr.idx);
+                    loop = null;
+                    val = null;
+                    continue;
+                }
+                final MalFunction f = (MalFunction)fr.vals[0];
+                if (f.getAst() != null) {
+                    // tail call: this frame is already popped
+                    env = gen_env(f, fr.vals);
+                    ast = f.getAst();
+                    loop = null;
+                    val = null;
+                } else if (f instanceof MalTailFunction) {
+                    final MalList args = new MalList();
+                    for (int i=1; i<fr.vals.length; i++) {
+                        args.conj_BANG(fr.vals[i]);
+                    }
+                    val = ((MalTailFunction)f).applyTail(args);
+                    if (val instanceof TailCall) {
+                        tail = (TailCall)val;
+                        val = null;
+                    }
+                } else {
+                    val = apply_fixed(f, fr.vals);
+                }
+                continue;
+            case F_IF:
+                if (val == types.Nil || val == types.False) {
+                    if (fr.ast.size() > 3) {
+                        ast = fr.ast.nth(3);
+                    } else {
+                        val = types.Nil;
+                        continue;
+                    }
+                } else {
+                    ast = fr.ast.nth(2);
+                }
+                loop = fr.loop;
+                loop_env = fr.loop_env;
+                val = null;
+                continue;
+            case F_DO:
+                if (fr.idx > 0) {
+                    env = top_level(env);
+                }
+                fr.idx++;
+                if (fr.idx < fr.ast.size()-1) {
+                    stack = fr;
+                    loop = null;
+                } else {
+                    loop = fr.loop;
+                    loop_env = fr.loop_env;
+                }
+                ast = fr.ast.nth(fr.idx);
+                val = null;
+                continue;
+            case F_LET:
+            case F_LOOP:
+                final MalList bindings = (MalList)fr.ast.nth(1);
+                if (fr.idx >= 0) {
+                    env.set((MalSymbol)bindings.nth(fr.idx), val);
+                }
+                while ((fr.idx += 2) < bindings.size()) {
+                    final MalVal init = bindings.nth(fr.idx + 1);
+                    final MalVal v = eval_simple(init, env);
+                    if (v == null) {
+                        break;
+                    }
+                    env.set((MalSymbol)bindings.nth(fr.idx), v);
+                }
+                if (fr.idx < bindings.size()) {
+                    stack = fr;
+                    ast = bindings.nth(fr.idx + 1);
+                    loop = null;
+                } else {
+                    ast = fr.ast.nth(2);
+                    loop = fr.loop;
+                    loop_env = fr.loop_env;
+                }
+                val = null;
+                continue;
+            case F_RECUR:
+                if (fr.idx > 0) {
+                    fr.vals[fr.idx] = val;
+                }
+                while (++fr.idx < fr.vals.length) {
+                    final MalVal arg = fr.ast.nth(fr.idx);
+                    if ((fr.vals[fr.idx] = eval_simple(arg, env)) == null) {
+                        break;
+                    }
+                }
+                if (fr.idx < fr.vals.length) {
+                    stack = fr;
+                    ast = fr.ast.nth(fr.idx);
+                    loop = null;
+                    val = null;
+                    continue;
+                }
+                loop = fr.loop;
+                loop_env = fr.loop_env;
+                if (loop.captures) {
+                    loop_env = new Env(loop_env.outer, loop.scope);
+                }
+                for (int i=0; i<loop.syms.length; i++) {
+                    loop_env.bind(i, fr.vals[i+1]);
+                }
+                ast = loop.body;
+                env = loop_env;
+                val = null;
+                continue;
+            case F_DEF:
+                env.set((MalSymbol)fr.ast.nth(1), val);
+                continue;
+            case F_DEFMACRO:
+                val = val.copy();
+                ((MalFunction)val).setMacro();
+                env.set((MalSymbol)fr.ast.nth(1), val);
+                continue;
+            case F_TRY:
+                continue;
+            case F_SWAP:
+                fr.tail.atom.value = val;
+                continue;
+            case F_MAP:
+                fr.vals[fr.idx] = val;
+                if (++fr.idx < fr.vals.length) {
+                    stack = fr;
+                    final MalFunction mf = fr.tail.f;
+                    final MalVal x = fr.tail.args.nth(fr.idx);
+                    if (mf.getAst() != null) {
+                        env = mf.genEnv1(x);
+                        ast = mf.getAst();
+                        loop = null;
+                        val = null;
+                    } else {
+                        val = mf.apply1(x);
+                    }
+                    continue;
+                }
+                final MalList mapped = new MalList();
+                for (MalVal mv : fr.vals) {
+                    mapped.conj_BANG(mv);
+                }
+                val = mapped;
+                continue;
+            case F_VECTOR:
+            case F_HASH_MAP:
+                if (fr.idx >= 0) {
+                    fr.vals[fr.idx] = val;
+                }
+                while (++fr.idx < fr.vals.length) {
+                    final MalVal elt = fr.kind == F_VECTOR
+                                       ? fr.ast.nth(fr.idx) : fr.vals[fr.idx];
+                    if ((fr.vals[fr.idx] = eval_simple(elt, env)) == null) {
+                        fr.vals[fr.idx] = elt;
+                        break;
+                    }
+                }
+                if (fr.idx < fr.vals.length) {
+                    stack = fr;
+                    ast = fr.vals[fr.idx];
+                    loop = null;
+                    val = null;
+                    continue;
+                }
+                if (fr.kind == F_VECTOR) {
+                    final MalVector new_lst = new MalVector();
+                    for (MalVal mv : fr.vals) {
+                        new_lst.conj_BANG(mv);
+                    }
+                    val = new_lst;
+                } else {
+                    final MalHashMap new_hm = new MalHashMap();
+                    for (int i=0; i<fr.keys.length; i++) {
+                        new_hm.value.put(fr.keys[i], fr.vals[i]);
+                    }
+                    val = new_hm;
+                }
+                continue;
+            }
+        } catch (Throwable t) {
+            // unwind to the innermost try* with a catch* clause
+            final Throwable thrown = MalUncheckedThrowable.unwrap(t);
+            Boolean caught = false;
+            tail = null;
+            while (stack != null && !caught) {
+                final Frame fr = stack;
+                stack = fr.next;
+                if (fr.kind == F_CALL && thrown instanceof MalThrowable &&
+                    fr.ast.nth(0) instanceof MalSymbol) {
+                    ((MalThrowable)thrown).addFrame(
+                        ((MalSymbol)fr.ast.nth(0)).getName());
+                }
+                if (fr.kind == F_TRY) {
+                    final MalList catch_clause = catch_clause(fr.ast);
+                    if (catch_clause != null) {
+                        env = catch_env(catch_clause, thrown, fr.env);
+                        ast = catch_clause.nth(2);
+                        loop = null;
+                        val = null;
+                        caught = true;
+                    }
+                }
+            }
+            if (!caught) {
+                if (thrown instanceof MalThrowable) {
+                    throw (MalThrowable)thrown;
+                }
+                throw t;
             }
         }
+        }
+    }
 
+    // require: (require 'foo.bar) or (require '[foo.bar :as fb]) makes
+    // namespace foo.bar available, first loading foo/bar.mal from a
+    // directory in *load-path* (through the loader's cache) unless that
+    // has been done already. The file is evaluated in namespace foo.bar,
+    // so one without an ns form defines its names there.
+    static final Set<String> loaded_libs = new HashSet<String>();
+
+    static void require(MalVal spec, Namespace core_ns) throws MalThrowable {
+        String alias = null;
+        if (spec instanceof MalList && ((MalList)spec).size() > 0) {
+            final MalList opts = (MalList)spec;
+            for (int i=1; i<opts.size(); i+=2) {
+                final MalVal opt = opts.nth(i);
+                if (!(opt instanceof MalString &&
+                      ((MalString)opt).getValue().equals("\u029eas") &&
+                      i+1 < opts.size() &&
+                      opts.nth(i+1) instanceof MalSymbol)) {
+                    throw new MalException("require: expected :as alias in " +
+                                           printer._pr_str(spec, true));
+                }
+                alias = ((MalSymbol)opts.nth(i+1)).getName();
+            }
+            spec = opts.nth(0);
+        }
+        if (!(spec instanceof MalSymbol)) {
+            throw new MalException("require: expected a namespace name, got " +
+                                   printer._pr_str(spec, true));
+        }
+        final String name = ((MalSymbol)spec).getName();
+        if (!loaded_libs.contains(name)) {
+            final String path = loader.lib_path(name);
+            if (path != null) {
+                loaded_libs.add(name);
+                final Namespace prev = Namespace.current();
+                final Namespace ns = Namespace.create(name, core_ns);
+                try {
+                    // parsed (and its requires prefetched) with the
+                    // *load-path* of the namespace requiring it
+                    final MalList forms = loader.forms(path);
+                    Namespace.setCurrent(ns);
+                    EVAL(forms, ns.env);
+                } catch (MalThrowable t) {
+                    loaded_libs.remove(name);
+                    throw t;
+                } finally {
+                    Namespace.setCurrent(prev);
+                }
+            } else if (Namespace.find(name) == null) {
+                throw new MalException("require: could not find " +
+                                       name.replace('.', '/') +
+                                       ".mal in *load-path*");
+            }
+        }
+        if (alias != null) {
+            Namespace.current().alias(alias, Namespace.find(name));
         }
     }
 
@@ -207,45 +1436,116 @@ public class stepA_mal {
         return EVAL(READ(str), env);
     }
 
+    // A lazy list is realized by printing it, so its errors are
+    // rethrown here too
+    public static String REP(Env env, String str) throws MalThrowable {
+        try {
+            return PRINT(RE(env, str));
+        } catch (MalUncheckedThrowable e) {
+            throw e.getThrown();
+        }
+    }
+
     public static void main(String[] args) throws MalThrowable {
         String prompt = "user> ";
+        printer.buffer_stdout();
 
-        final Env repl_env = new Env(null);
+        // Builtins and core.mal are defined in the core namespace, which
+        // every other namespace refers to. The REPL starts in user.
+        final Namespace core_ns = Namespace.create("core", null);
+        final Env repl_env = core_ns.env;
+        Namespace.setCurrent(core_ns);
+        TailCall.evaluator = new TailCall.Evaluator() {
+            public MalVal eval(MalVal ast, Env env) throws MalThrowable {
+                return EVAL(ast, env);
+            }
+        };
 
         // core.java: defined using Java
         for (String key : core.ns.keySet()) {
             repl_env.set(new MalSymbol(key), core.ns.get(key));
         }
-        repl_env.set(new MalSymbol("eval"), new MalFunction() {
+        repl_env.set(new MalSymbol("eval"), new MalTailFunction() {
+            public MalVal applyTail(MalList args) throws MalThrowable {
+                return TailCall.eval(args.nth(0), Namespace.current().env);
+            }
             public MalVal apply(MalList args) throws MalThrowable {
-                return EVAL(args.nth(0), repl_env);
+                return EVAL(args.nth(0), Namespace.current().env);
             }
         });
+        repl_env.set(new MalSymbol("in-ns"), new MalFunction() {
+            public MalVal apply(MalList args) throws MalThrowable {
+                Namespace.setCurrent(Namespace.create(
+                    ((MalSymbol)args.nth(0)).getName(), core_ns));
+                return types.Nil;
+            }
+        });
+        repl_env.set(new MalSymbol("require"), new MalFunction() {
+            public MalVal apply(MalList args) throws MalThrowable {
+                for (int i=0; i<args.size(); i++) {
+                    require(args.nth(i), core_ns);
+                }
+                return types.Nil;
+            }
+        });
+        Integer fileIdx = 0;
+        for (; fileIdx < args.length; fileIdx++) {
+            if (args[fileIdx].equals("--raw")) {
+                readline.mode = readline.Mode.JAVA;
+            } else if (args[fileIdx].equals("--batch")) {
+                readline.mode = readline.Mode.BATCH;
+            } else if (args[fileIdx].equals("--heap-stack")) {
+                heap_stack = true;
+            } else {
+                break;
+            }
+        }
         MalList _argv = new MalList();
-        for (Integer i=1; i < args.length; i++) {
+        for (Integer i=fileIdx+1; i < args.length; i++) {
             _argv.conj_BANG(new MalString(args[i]));
         }
         repl_env.set(new MalSymbol("*ARGV*"), _argv);
+        repl_env.set(new MalSymbol("*in*"), core.stdin_lines);
 
 
         // core.mal: defined using the language itself
         RE(repl_env, "(def! *host-language* \"java\")");
         RE(repl_env, "(def! not (fn* (a) (if a false true)))");
-        RE(repl_env, "(def! load-file (fn* (f) (eval (read-string (str \"(do \" (slurp f) \"\nnil)\")))))");
+        RE(repl_env, "(def! load-file load)");
         RE(repl_env, "(defmacro! cond (fn* (& xs) (if (> (count xs) 0) (list 'if (first xs) (if (> (count xs) 1) (nth xs 1) (throw \"odd number of forms to cond\")) (cons 'cond (rest (rest xs)))))))");
-        
-        Integer fileIdx = 0;
-        if (args.length > 0 && args[0].equals("--raw")) {
-            readline.mode = readline.Mode.JAVA;
-            fileIdx = 1;
-        }
+        RE(repl_env, "(def! *load-path* [\".\" \"../lib\"])");
+        RE(repl_env, "(def! *print-length* nil)");
+        RE(repl_env, "(def! *print-level* nil)");
+        RE(repl_env, "(defmacro! ns (fn* (name & clauses) (list 'do (list 'in-ns (list 'quote name)) (cons 'require (map (fn* (spec) (list 'quote spec)) (apply concat (map (fn* (c) (if (= (first c) :require) (rest c) (throw (str \"ns: unsupported clause \" c)))) clauses)))))))");
+
+        final Namespace user_ns = Namespace.create("user", core_ns);
+        Namespace.setCurrent(user_ns);
+
         if (args.length > fileIdx) {
-            RE(repl_env, "(load-file \"" + args[fileIdx] + "\")");
+            try {
+                RE(user_ns.env, "(load-file \"" + args[fileIdx] + "\")");
+            } catch (MalException e) {
+                System.out.flush();
+                System.err.println("Error: " + printer._pr_str(e.getValue(), false));
+                System.err.print(e.getMalStackTrace());
+                System.exit(1);
+            } catch (MalThrowable t) {
+                System.out.flush();
+                System.err.println("Error: " + t.getMessage());
+                System.err.print(t.getMalStackTrace());
+                System.exit(1);
+            }
+            // flushed here too, as the shutdown hook may not run before
+            // the host (mvn exec:java) exits
+            System.out.flush();
             return;
         }
 
-        // repl loop
-        RE(repl_env, "(println (str \"Mal [\" *host-language* \"]\"))");
+        // repl loop (in batch mode, each line of stdin with no banner or
+        // prompts)
+        if (readline.mode != readline.Mode.BATCH) {
+            RE(user_ns.env, "(println (str \"Mal [\" *host-language* \"]\"))");
+        }
         while (true) {
             String line;
             try {
@@ -258,7 +1558,7 @@ public class stepA_mal {
                 break;
             }
             try {
-                System.out.println(PRINT(RE(repl_env, line)));
+                System.out.println(REP(Namespace.current().env, line));
             } catch (MalContinue e) {
             } catch (MalException e) {
                 System.out.println("Error: " + printer._pr_str(e.getValue(), false));
@@ -268,5 +1568,6 @@ public class stepA_mal {
                 System.out.println("Uncaught " + t + ": " + t.getMessage());
             }
         }
+        System.out.flush();
     }
 }
@@ -1,21 +1,63 @@
 package mal;
 
 import java.util.List;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.io.StringWriter;
+import java.io.PrintWriter;
 
 import mal.printer;
 import mal.env.Env;
+import mal.env.EnvSlot;
+import mal.env.Scope;
 
 public class types {
     //
     // Exceptions/Errors
     //
+    //
+    // Mal-level exceptions do not capture a JVM stack trace (they are
+    // used for ordinary control flow by try*/catch*). Instead the
+    // evaluator records the Mal functions the exception unwound through.
     public static class MalThrowable extends Exception {
-        public MalThrowable() { }
-        public MalThrowable(String msg) { super(msg); }
+        static final int MAX_FRAMES = 64;
+        List<String> frames = null;
+        int dropped = 0;
+
+        public MalThrowable() { super(null, null, false, false); }
+        public MalThrowable(String msg) { super(msg, null, false, false); }
+
+        public void addFrame(String name) {
+            if (frames == null) {
+                frames = new ArrayList<String>();
+            }
+            if (frames.size() < MAX_FRAMES) {
+                frames.add(name);
+            } else {
+                dropped++;
+            }
+        }
+        public List<String> getFrames() {
+            if (frames == null) {
+                return new ArrayList<String>();
+            }
+            return frames;
+        }
+        public String getMalStackTrace() {
+            StringBuilder sb = new StringBuilder();
+            for (String frame : getFrames()) {
+                sb.append("  in ").append(frame).append("\n");
+            }
+            if (dropped > 0) {
+                sb.append("  ... ").append(dropped).append(" more\n");
+            }
+            return sb.toString();
+        }
     }
     public static class MalError extends MalThrowable {
         public MalError(String msg) { super(msg); }
@@ -34,6 +76,23 @@ public class types {
         public MalVal getValue() { return value; }
     }
 
+    // Carries a MalThrowable out of code that cannot throw a checked
+    // exception (a lazy list realized by a java.util.List method); the
+    // evaluator unwraps it before try*/catch* and the REPL see it
+    public static class MalUncheckedThrowable extends RuntimeException {
+        final MalThrowable thrown;
+        public MalUncheckedThrowable(MalThrowable thrown) {
+            super(null, null, false, false);
+            this.thrown = thrown;
+        }
+        public MalThrowable getThrown() { return thrown; }
+
+        public static Throwable unwrap(Throwable t) {
+            return t instanceof MalUncheckedThrowable
+                ? ((MalUncheckedThrowable)t).thrown : t;
+        }
+    }
+
     //
     // General functions
     //
@@ -45,8 +104,8 @@ public class types {
             return false;
         } else {
             if (a instanceof MalInteger) {
-                return ((MalInteger)a).getValue() ==
-                       ((MalInteger)b).getValue();
+                return ((MalInteger)a).getValue().equals(
+                       ((MalInteger)b).getValue());
             } else if (a instanceof MalSymbol) {
                 return ((MalSymbol)a).getName().equals(
                        ((MalSymbol)b).getName());
@@ -54,12 +113,13 @@ public class types {
                 return ((MalString)a).getValue().equals(
                        ((MalString)b).getValue());
             } else if (a instanceof MalList) {
-                if (((MalList)a).size() != ((MalList)b).size()) {
+                final List la = ((MalList)a).value, lb = ((MalList)b).value;
+                if (la.size() != lb.size()) {
                     return false;
                 }
-                for (Integer i=0; i<((MalList)a).size(); i++) {
-                    if (! _equal_Q(((MalList)a).nth(i),
-                                   ((MalList)b).nth(i))) {
+                final Iterator ia = la.iterator(), ib = lb.iterator();
+                while (ia.hasNext()) {
+                    if (! _equal_Q((MalVal)ia.next(), (MalVal)ib.next())) {
                         return false;
                     }
                 }
@@ -78,6 +138,8 @@ public class types {
                     }
                 }
                 return true;
+            } else if (a instanceof MalJavaObject) {
+                return ((MalJavaObject)a).value.equals(((MalJavaObject)b).value);
             } else {
                 return a == b;
             }
@@ -147,6 +209,8 @@ public class types {
 
     public static class MalSymbol extends MalVal {
         String value;
+        // Where the symbol was last found when evaluated (Env.lookup)
+        public EnvSlot slot = null;
         public MalSymbol(String v) { value = v; }
         public MalSymbol(MalString v) { value = v.getValue(); }
         public MalSymbol copy() throws MalThrowable { return this; }
@@ -164,22 +228,40 @@ public class types {
 
         public String getValue() { return value; }
         @Override public String toString() {
-            return "\"" + value + "\"";
+            return "\"" + getValue() + "\"";
         }
         public String toString(Boolean print_readably) {
-            if (value.length() > 0 && value.charAt(0) == '\u029e') {
-                return ":" + value.substring(1);
-            } else if (print_readably) {
-                return "\"" + printer.escapeString(value) + "\"";
-            } else {
-                return value;
+            return printer._pr_str(this, print_readably);
+        }
+    }
+
+    // Describes a host (non-Mal) exception caught by try*. Rendering the
+    // Java stack trace is expensive so it is deferred until the string
+    // is actually used.
+    public static class MalThrowableString extends MalString {
+        Throwable throwable;
+        public MalThrowableString(Throwable t) {
+            super((String)null);
+            throwable = t;
+        }
+
+        public String getValue() {
+            if (value == null) {
+                StringWriter sw = new StringWriter();
+                throwable.printStackTrace(new PrintWriter(sw));
+                value = throwable.getMessage() + ": " + sw.toString();
+                throwable = null;
             }
+            return value;
         }
     }
 
     public static class MalList extends MalVal {
         String start = "(", end = ")";
         List value;
+        // Evaluator data cached on a special form the first time it is
+        // analyzed (e.g. the binding symbols of a loop*)
+        public Object analysis = null;
         public MalList(List val) {
             value = val;
         }
@@ -195,10 +277,10 @@ public class types {
         }
 
         @Override public String toString() {
-            return start + printer.join(value, " ", true) + end;
+            return printer._pr_str(this, true);
         }
         public String toString(Boolean print_readably) {
-            return start + printer.join(value, " ", print_readably) + end;
+            return printer._pr_str(this, print_readably);
         }
 
         public List getList() { return value; }
@@ -261,6 +343,104 @@ public class types {
         }
     }
 
+    // Produces the elements of a MalLazyList, then null at the end
+    public static interface Producer {
+        public MalVal next() throws MalThrowable;
+    }
+
+    //
+    // A list whose elements are produced when first used. rest() shares
+    // the producer, so walking the list with first/rest keeps only the
+    // elements not consumed yet; count, printing and = realize them all.
+    // An error from the producer is raised as a MalUncheckedThrowable.
+    //
+    public static class MalLazyList extends MalList {
+        static final class Cell {
+            MalVal first = null;    // null at the end
+            Cell next = null;
+            Producer producer;      // until realized
+
+            Cell(Producer producer) { this.producer = producer; }
+
+            Cell realize() {
+                if (producer != null) {
+                    try {
+                        first = producer.next();
+                    } catch (MalThrowable t) {
+                        throw new MalUncheckedThrowable(t);
+                    }
+                    if (first != null) {
+                        next = new Cell(producer);
+                    }
+                    producer = null;
+                }
+                return this;
+            }
+        }
+
+        static final class Cells extends AbstractList<MalVal> {
+            final Cell head;
+            // Last cell reached by get, so indexed walks are linear
+            Cell cursor;
+            int index = 0;
+
+            Cells(Cell head) { this.head = head; cursor = head; }
+
+            public MalVal get(int i) {
+                if (i < index) {
+                    cursor = head;
+                    index = 0;
+                }
+                while (index < i && cursor.realize().first != null) {
+                    cursor = cursor.next;
+                    index++;
+                }
+                if (i < 0 || cursor.realize().first == null) {
+                    throw new IndexOutOfBoundsException("Index: " + i);
+                }
+                return cursor.first;
+            }
+            public int size() {
+                int n = 0;
+                for (Cell c = head; c.realize().first != null; c = c.next) {
+                    n++;
+                }
+                return n;
+            }
+            public boolean isEmpty() {
+                return head.realize().first == null;
+            }
+            public Iterator<MalVal> iterator() {
+                return new Iterator<MalVal>() {
+                    Cell c = head;
+                    public boolean hasNext() { return c.realize().first != null; }
+                    public MalVal next() {
+                        if (!hasNext()) { throw new NoSuchElementException(); }
+                        final MalVal v = c.first;
+                        c = c.next;
+                        return v;
+                    }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        }
+
+        public MalLazyList(Producer producer) {
+            this(new Cell(producer));
+        }
+        MalLazyList(Cell head) {
+            super(new Cells(head));
+        }
+
+        public MalList rest() {
+            final Cell head = ((Cells)value).head.realize();
+            if (head.first == null) {
+                return new MalList();
+            }
+            return new MalLazyList(head.next);
+        }
+    }
+
     public static class MalHashMap extends MalVal {
         Map value;
         public MalHashMap(Map val) {
@@ -283,10 +463,10 @@ public class types {
         }
 
         @Override public String toString() {
-            return "{" + printer.join(value, " ", true) + "}";
+            return printer._pr_str(this, true);
         }
         public String toString(Boolean print_readably) {
-            return "{" + printer.join(value, " ", print_readably) + "}";
+            return printer._pr_str(this, print_readably);
         }
 
         public Set _entries() {
@@ -326,15 +506,38 @@ public class types {
         public MalAtom(MalVal value) { this.value = value; }
         public MalAtom copy() throws MalThrowable { return new MalAtom(value); }
         @Override public String toString() {
-            return "(atom " + printer._pr_str(value, true) + ")";
+            return printer._pr_str(this, true);
         }
         public String toString(Boolean print_readably) {
-            return "(atom " + printer._pr_str(value, print_readably) + ")";
+            return printer._pr_str(this, print_readably);
         }
     }
 
+    // A Java object returned by interop (see interop.java) that has no
+    // mal counterpart
+    public static class MalJavaObject extends MalVal {
+        final Object value;
+        public MalJavaObject(Object value) { this.value = value; }
+        public MalJavaObject copy() throws MalThrowable { return this; }
+
+        public Object getValue() { return value; }
+        @Override public String toString() {
+            return "#object[" + value.getClass().getName() + " " + value + "]";
+        }
+    }
+
+    // apply(MalList) is the general (varargs) entry point. The fixed-arity
+    // entry points let callers that know the argument count avoid packing
+    // the arguments into a MalList.
     public static interface ILambda {
         public MalVal apply(MalList args) throws MalThrowable;
+        public MalVal apply0() throws MalThrowable;
+        public MalVal apply1(MalVal a) throws MalThrowable;
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable;
+        public MalVal apply3(MalVal a, MalVal b, MalVal c)
+            throws MalThrowable;
+        public MalVal apply4(MalVal a, MalVal b, MalVal c, MalVal d)
+            throws MalThrowable;
     }
 
     public static abstract class MalFunction extends MalVal
@@ -343,11 +546,22 @@ public class types {
         public Env env = null;
         public MalList params = null;
         public Boolean macro = false;
+        // Number of positional params; -1 if params contain '&'
+        int arity = -1;
+        Scope scope = null;
         public MalFunction() { }
         public MalFunction(MalVal ast, Env env, MalList params) {
             this.ast = ast;
             this.env = env;
             this.params = params;
+            this.scope = Scope.params(params);
+            this.arity = params.size();
+            for (Integer i=0; i<params.size(); i++) {
+                if (((MalSymbol)params.nth(i)).getName().equals("&")) {
+                    this.arity = -1;
+                    break;
+                }
+            }
         }
         public MalFunction copy() throws MalThrowable {
             try {
@@ -361,6 +575,8 @@ public class types {
                 new_mf.env = env;
                 new_mf.params = params;
                 new_mf.macro = macro;
+                new_mf.arity = arity;
+                new_mf.scope = scope;
                 return new_mf;
             } catch (Throwable t) {
                 // not much we can do
@@ -369,13 +585,158 @@ public class types {
             }
         }
 
+        // By default the fixed-arity entry points fall back to apply
+        public MalVal apply0() throws MalThrowable {
+            return apply(new MalList());
+        }
+        public MalVal apply1(MalVal a) throws MalThrowable {
+            return apply(new MalList(a));
+        }
+        public MalVal apply2(MalVal a, MalVal b) throws MalThrowable {
+            return apply(new MalList(a, b));
+        }
+        public MalVal apply3(MalVal a, MalVal b, MalVal c)
+                throws MalThrowable {
+            return apply(new MalList(a, b, c));
+        }
+        public MalVal apply4(MalVal a, MalVal b, MalVal c, MalVal d)
+                throws MalThrowable {
+            return apply(new MalList(a, b, c, d));
+        }
+
         public MalVal getAst() { return ast; }
         public Env getEnv() { return env; }
         public MalList getParams() { return params; }
         public Env genEnv(MalList args) {
             return new Env(env, params, args);
         }
+        // Bind positional params straight into their slots when the call
+        // matches the function's arity, otherwise go through genEnv
+        public Env genEnv0() {
+            if (arity != 0) { return genEnv(new MalList()); }
+            return new Env(env, scope);
+        }
+        public Env genEnv1(MalVal a) {
+            if (arity != 1) { return genEnv(new MalList(a)); }
+            return new Env(env, scope).bind(0, a);
+        }
+        public Env genEnv2(MalVal a, MalVal b) {
+            if (arity != 2) { return genEnv(new MalList(a, b)); }
+            return new Env(env, scope).bind(0, a).bind(1, b);
+        }
+        public Env genEnv3(MalVal a, MalVal b, MalVal c) {
+            if (arity != 3) { return genEnv(new MalList(a, b, c)); }
+            return new Env(env, scope).bind(0, a).bind(1, b).bind(2, c);
+        }
+        public Env genEnv4(MalVal a, MalVal b, MalVal c, MalVal d) {
+            if (arity != 4) { return genEnv(new MalList(a, b, c, d)); }
+            return new Env(env, scope)
+                .bind(0, a).bind(1, b).bind(2, c).bind(3, d);
+        }
         public Boolean isMacro() { return macro; }
         public void setMacro() { macro = true; }
     }
+
+    // Builtins that finish by calling a function (apply), by calling one
+    // for an atom (swap!) or for each element (map), or by evaluating a
+    // form (eval) return a TailCall from applyTail. The evaluator then
+    // runs the call in its own loop instead of nesting a new one.
+    public static abstract class MalTailFunction extends MalFunction {
+        public abstract MalVal applyTail(MalList args) throws MalThrowable;
+        public MalVal apply(MalList args) throws MalThrowable {
+            MalVal res = applyTail(args);
+            if (res instanceof TailCall) {
+                return ((TailCall)res).invoke();
+            }
+            return res;
+        }
+    }
+
+    public static class TailCall extends MalVal {
+        public static final int CALL = 0, SWAP = 1, MAP = 2, EVAL = 3;
+        public final int kind;
+        public final MalFunction f;
+        public final MalList args;   // CALL, SWAP: arguments; MAP: sequence
+        public final MalAtom atom;   // SWAP: atom receiving the result
+        public final MalVal ast;     // EVAL: form to evaluate in env
+        public final Env env;
+
+        TailCall(int kind, MalFunction f, MalList args, MalAtom atom,
+                 MalVal ast, Env env) {
+            this.kind = kind;
+            this.f = f;
+            this.args = args;
+            this.atom = atom;
+            this.ast = ast;
+            this.env = env;
+        }
+        public static TailCall call(MalFunction f, MalList args) {
+            return new TailCall(CALL, f, args, null, null, null);
+        }
+        public static TailCall swap(MalAtom atom, MalFunction f, MalList args) {
+            return new TailCall(SWAP, f, args, atom, null, null);
+        }
+        public static TailCall map(MalFunction f, MalList seq) {
+            return new TailCall(MAP, f, seq, null, null, null);
+        }
+        public static TailCall eval(MalVal ast, Env env) {
+            return new TailCall(EVAL, null, null, null, ast, env);
+        }
+        public TailCall copy() throws MalThrowable { return this; }
+
+        // The step's evaluator, for an eval invoked outside of it
+        public static interface Evaluator {
+            public MalVal eval(MalVal ast, Env env) throws MalThrowable;
+        }
+        public static Evaluator evaluator = null;
+
+        // Run the call on the Java stack, for callers outside the evaluator
+        public MalVal invoke() throws MalThrowable {
+            switch (kind) {
+            case CALL:
+                return apply_args(f, args);
+            case SWAP:
+                atom.value = apply_args(f, args);
+                return atom.value;
+            case MAP:
+                MalList new_lst = new MalList();
+                for (Integer i=0; i<args.size(); i++) {
+                    new_lst.value.add(f.apply1(args.nth(i)));
+                }
+                return new_lst;
+            default:
+                if (evaluator == null) {
+                    throw new MalError("TailCall: cannot invoke an eval outside the evaluator");
+                }
+                return evaluator.eval(ast, env);
+            }
+        }
+
+        static MalVal apply_args(MalFunction f, MalList args)
+                throws MalThrowable {
+            switch (args.size()) {
+            case 0: return f.apply0();
+            case 1: return f.apply1(args.nth(0));
+            case 2: return f.apply2(args.nth(0), args.nth(1));
+            case 3: return f.apply3(args.nth(0), args.nth(1), args.nth(2));
+            default: return f.apply(args);
+            }
+        }
+    }
+
+    // Builtins taking a fixed number of arguments implement the matching
+    // entry point; apply unpacks the argument list for generic callers.
+    public static abstract class MalFunction1 extends MalFunction {
+        public abstract MalVal apply1(MalVal a) throws MalThrowable;
+        public MalVal apply(MalList args) throws MalThrowable {
+            return apply1(args.nth(0));
+        }
+    }
+
+    public static abstract class MalFunction2 extends MalFunction {
+        public abstract MalVal apply2(MalVal a, MalVal b) throws MalThrowable;
+        public MalVal apply(MalList args) throws MalThrowable {
+            return apply2(args.nth(0), args.nth(1));
+        }
+    }
 }
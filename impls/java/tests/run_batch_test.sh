@@ -0,0 +1,48 @@
+#!/usr/bin/env bash
+
+#
+# Usage: run_batch_test.sh <command line arguments to run stepA_mal>
+#
+# Example: run_batch_test.sh ./run
+#
+
+assert_equal() {
+  if [ "$1" = "$2" ] ; then
+    echo "OK: '$1'"
+  else
+    echo "FAIL: Expected '$1' but got '$2'"
+    echo
+    exit 1
+  fi
+}
+
+if [ -z "$1" ] ; then
+  echo "Usage: $0 <command line arguments to run stepA_mal>"
+  exit 1
+fi
+
+root="$(dirname $0)"
+
+# a script reading (*in*) as a filter
+out="$( printf 'ab\ncd\n' | $@ --batch $root/batch_upper.mal | tr -d '\r' )"
+assert_equal "$(printf 'AB\nCD\n2')" "$out"
+
+out="$( $@ --batch $root/batch_upper.mal < /dev/null | tr -d '\r' )"
+assert_equal '0' "$out"
+
+# in the batch repl, the lines (*in*) and read-line read are not evaluated
+out="$( printf '(count (*in*))\nab\ncd\n' | $@ --batch | tr -d '\r' )"
+assert_equal '2' "$out"
+
+out="$( printf '(read-line)\nab\n(first (*in*))\ncd\n(read-line)\n' | $@ --batch | tr -d '\r' )"
+assert_equal "$(printf '"ab"\n"cd"\nnil')" "$out"
+
+# the lines a script has walked past are not kept: a million of them
+# (about 100MB as strings) go through a 64MB heap
+out="$( seq 1 1000000 | sed 's/$/ of a million lines of standard input/' |
+        JAVA_TOOL_OPTIONS=-Xmx64m $@ --batch $root/batch_upper.mal 2>/dev/null |
+        tail -1 | tr -d '\r' )"
+assert_equal '1000000' "$out"
+
+echo 'Passed all batch *in* tests'
+echo